@@ -17,11 +17,17 @@ package ru.org.sevn.common.solr;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
@@ -41,6 +47,8 @@ import org.apache.solr.common.SolrDocumentList;
 import org.apache.solr.common.SolrInputDocument;
 import org.apache.solr.common.util.ContentStream;
 import org.apache.solr.common.util.ContentStreamBase;
+import ru.org.sevn.common.util.FileMetadata;
+import ru.org.sevn.common.util.IOGovernor;
 import ru.org.sevn.tfstore.StoreLogger;
 
 public class SolrIndexer {
@@ -64,9 +72,23 @@ bin\solr stop -p 8983﻿
     */
     public static String DEFAULT_URL = "http://localhost:8983/solr";
     private final SolrClient solrClient;
-    private final ExecutorService executorService = Executors.newFixedThreadPool(1);
+    private volatile Thread indexerThread;
+    private final ExecutorService executorService = Executors.newFixedThreadPool(1, r -> {
+        Thread t = new Thread(r, "solr-indexer");
+        indexerThread = t;
+        return t;
+    });
+    
+    // the queued docs are limited by count and by size, addDoc*Async waits for the room
+    private final Object queueLock = new Object();
+    private int maxQueueTasks = 1000;
+    private long maxQueueBytes = 512 * 1024 * 1024L;
+    private int queueTasks;
+    private long queueBytes;
+    private final AtomicLong blockedMillis = new AtomicLong();
     
     private final StoreLogger logger;
+    private volatile IOGovernor ioGovernor;
 
     public StoreLogger getLogger() {
         return logger;
@@ -150,6 +172,17 @@ bin\solr stop -p 8983﻿
     
     public Throwable addDoc(String wpath, String ch, String uuidpath, String path, File fl, String title, 
             HashMap<String, Object> attributes) {
+        return addDoc(wpath, ch, uuidpath, path, fl, null, title, attributes);
+    }
+    
+    // attr - already read attributes of fl or null
+    public Throwable addDoc(String wpath, String ch, String uuidpath, String path, File fl, BasicFileAttributes attr, String title, 
+            HashMap<String, Object> attributes) {
+        return addDoc(wpath, ch, uuidpath, path, fl, attr, title, attributes, true);
+    }
+    
+    private Throwable addDoc(String wpath, String ch, String uuidpath, String path, File fl, BasicFileAttributes attr, String title, 
+            HashMap<String, Object> attributes, boolean commit) {
         
         Throwable res = null;
         try {
@@ -157,23 +190,32 @@ bin\solr stop -p 8983﻿
             if (title == null) {
                 title = fl.getName();
             }
-            if (fl.isDirectory()) {
+            if (attr == null) {
+                attr = Files.readAttributes(fl.toPath(), BasicFileAttributes.class);
+            }
+            if (attr.isDirectory()) {
                 {
                     HashMap<String, Object> attributes2index = new HashMap<>(attributes);
-                    addFileAttributes(fl, attributes2index);
+                    addFileAttributes(attr, attributes2index);
                     res = addDoc(makeDir(wpath, ch, uuidpath, path, fl.getName(), fullTitle, attributes2index));
                     if (res != null) {
                         return res;
                     }
                 }
-                for (File f : fl.listFiles()) {
-                    res = addDoc(wpath, ch, uuidpath, Paths.get(path).resolve(f.getName()).toString(), f, null, new HashMap<>(attributes));
-                    if (res != null) {
-                        return res;
+                try (DirectoryStream<Path> ds = Files.newDirectoryStream(fl.toPath())) {
+                    for (Path p : ds) {
+                        File f = p.toFile();
+                        res = addDoc(wpath, ch, uuidpath, Paths.get(path).resolve(f.getName()).toString(), f, null, null, new HashMap<>(attributes), commit);
+                        if (res != null) {
+                            return res;
+                        }
                     }
+                } catch (DirectoryIteratorException ex) {
+                    throw ex.getCause();
                 }
             } else {
-                ContentStreamUpdateRequest req = makeUpdateRequest(wpath, ch, uuidpath, path, fl, title, fullTitle, attributes);
+                addFileAttributes(attr, attributes);
+                ContentStreamUpdateRequest req = makeUpdateRequest(wpath, ch, uuidpath, path, makeContentStream(fl), title, fullTitle, attributes, commit);
                 if (req != null) {
                     res = addDoc(req);
                 }
@@ -188,11 +230,24 @@ bin\solr stop -p 8983﻿
     public void addDocAsync(String wpath, String ch, String uuidpath, String path, File fl, String title,
             HashMap<String, Object> attributes,
             Consumer<Throwable> result) {
+        addDocAsync(wpath, ch, uuidpath, path, fl, null, title, attributes, result);
+    }
+    
+    public void addDocAsync(String wpath, String ch, String uuidpath, String path, File fl, BasicFileAttributes attr, String title,
+            HashMap<String, Object> attributes,
+            Consumer<Throwable> result) {
         
             System.out.println("SCHEDULE>" + fl.getAbsolutePath());
+            long bytes = getSize(fl, attr);
+            enqueue(bytes);
             executorService.submit(() -> {
                 System.out.println("SCH----->" + fl.getAbsolutePath());
-                Throwable res = addDoc(wpath, ch, uuidpath, path, fl, title, attributes);
+                Throwable res;
+                try {
+                    res = addDoc(wpath, ch, uuidpath, path, fl, attr, title, attributes);
+                } finally {
+                    dequeue(bytes);
+                }
                 long zzz = counterNeedCommit.incrementAndGet();;
                 System.out.println("SCH----->" + zzz);
                 
@@ -202,6 +257,264 @@ bin\solr stop -p 8983﻿
         });
     }
     
+    // the content is read through the governor if it's set
+    private ContentStream makeContentStream(File fl) {
+        IOGovernor governor = ioGovernor;
+        if (governor == null) {
+            return new ContentStreamBase.FileStream(fl);
+        }
+        return new ContentStreamBase.FileStream(fl) {
+            @Override
+            public InputStream getStream() throws IOException {
+                return governor.throttle(super.getStream());
+            }
+        };
+    }
+    
+    public IOGovernor getIOGovernor() {
+        return ioGovernor;
+    }
+
+    public void setIOGovernor(IOGovernor ioGovernor) {
+        this.ioGovernor = ioGovernor;
+    }
+    
+    public static class Doc {
+        private final String wpath;
+        private final String ch;
+        private final String uuidpath;
+        private final String path;
+        private final File fl;
+        private final BasicFileAttributes attr;
+        private final String title;
+        private final HashMap<String, Object> attributes;
+        private final Consumer<Throwable> result;
+        // the content which is not in fl, e.g. a file stored in segments
+        private ContentStream content;
+        private String fullTitle;
+        // a directory doc without its children
+        private boolean shallow;
+
+        public Doc(String wpath, String ch, String uuidpath, String path, File fl, BasicFileAttributes attr, String title,
+                HashMap<String, Object> attributes, Consumer<Throwable> result) {
+            this.wpath = wpath;
+            this.ch = ch;
+            this.uuidpath = uuidpath;
+            this.path = path;
+            this.fl = fl;
+            this.attr = attr;
+            this.title = title;
+            this.attributes = attributes;
+            this.result = result;
+        }
+        
+        public Doc setContent(ContentStream content, String fullTitle) {
+            this.content = content;
+            this.fullTitle = fullTitle;
+            return this;
+        }
+        
+        public Doc setShallow(boolean shallow) {
+            this.shallow = shallow;
+            return this;
+        }
+    }
+    
+    // one task and one commit for all the docs, every result gets its own error or the commit one
+    public void addDocsAsync(Collection<Doc> docs) {
+        ArrayList<Doc> batch = new ArrayList<>(docs);
+        System.out.println("SCHEDULE BATCH>" + batch.size());
+        long bytes = 0;
+        for (Doc d : batch) {
+            bytes += getSize(d.fl, d.attr);
+        }
+        long batchBytes = bytes;
+        enqueue(batchBytes);
+        executorService.submit(() -> {
+            HashMap<Doc, Throwable> errors = new HashMap<>();
+            try {
+                for (Doc d : batch) {
+                    Throwable res = addDoc(d, false);
+                    if (res != null) {
+                        errors.put(d, res);
+                    }
+                }
+            } finally {
+                dequeue(batchBytes);
+            }
+            counterNeedCommit.addAndGet(batch.size());
+            onCommit.add(t -> {
+                for (Doc d : batch) {
+                    if (d.result != null) {
+                        d.result.accept(errors.containsKey(d) ? errors.get(d) : t);
+                    }
+                }
+            });
+            commitNow();
+        });
+    }
+    
+    // the docs of the files and the docs of the directories with everything under them,
+    // one request on the indexer thread, committed with the next commit
+    public void deleteAsync(String wpath, Collection<String> files, Collection<String> dirs) {
+        if (files.isEmpty() && dirs.isEmpty()) {
+            return;
+        }
+        ArrayList<String> ids = new ArrayList<>();
+        StringBuilder q = new StringBuilder();
+        for (String path : files) {
+            ids.add(makeId(wpath, path));
+        }
+        for (String path : dirs) {
+            ids.add(makeId(wpath, path));
+            if (q.length() > 0) {
+                q.append(" OR ");
+            }
+            q.append("(").append(SolrSelect.toQueryNamedParamEscape(DOC_WPATH, wpath)).append(" AND ")
+                    .append(SolrSelect.toQueryNamedParam(DOC_PATH, SolrSelect.toQueryParam(path + File.separator) + "*")).append(")");
+        }
+        executorService.submit(() -> {
+            try {
+                solrClient.deleteById(ids);
+                if (q.length() > 0) {
+                    solrClient.deleteByQuery(q.toString());
+                }
+                counterNeedCommit.incrementAndGet();
+            } catch (SolrServerException | IOException ex) {
+                Logger.getLogger(SolrIndexer.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        });
+    }
+    
+    // on the caller thread and without a commit, for the jobs running their own threads
+    public Map<Doc, Throwable> addDocs(Collection<Doc> docs) {
+        HashMap<Doc, Throwable> errors = new HashMap<>();
+        for (Doc d : docs) {
+            Throwable res = addDoc(d, false);
+            if (res != null) {
+                errors.put(d, res);
+            }
+        }
+        return errors;
+    }
+    
+    private Throwable addDoc(Doc d, boolean commit) {
+        if (d.shallow && d.attr != null && d.attr.isDirectory()) {
+            HashMap<String, Object> attributes2index = new HashMap<>(d.attributes);
+            addFileAttributes(d.attr, attributes2index);
+            String fullTitle = Paths.get(d.ch, d.uuidpath).relativize(Paths.get(d.path)).toString();
+            return addDoc(makeDir(d.wpath, d.ch, d.uuidpath, d.path, d.title, fullTitle, attributes2index));
+        }
+        if (d.content == null) {
+            return addDoc(d.wpath, d.ch, d.uuidpath, d.path, d.fl, d.attr, d.title, d.attributes, commit);
+        }
+        try {
+            BasicFileAttributes attr = d.attr;
+            if (attr == null) {
+                attr = Files.readAttributes(d.fl.toPath(), BasicFileAttributes.class);
+            }
+            addFileAttributes(attr, d.attributes);
+            ContentStreamUpdateRequest req = makeUpdateRequest(d.wpath, d.ch, d.uuidpath, d.path, throttle(d.content), d.title, d.fullTitle, d.attributes, commit);
+            return (req == null) ? null : addDoc(req);
+        } catch (IOException ex) {
+            Logger.getLogger(SolrIndexer.class.getName()).log(Level.SEVERE, null, ex);
+            return ex;
+        }
+    }
+    
+    private ContentStream throttle(ContentStream cs) {
+        IOGovernor governor = ioGovernor;
+        if (governor == null) {
+            return cs;
+        }
+        return new ContentStreamBase() {
+            {
+                setName(cs.getName());
+                setSize(cs.getSize());
+                setSourceInfo(cs.getSourceInfo());
+                setContentType(cs.getContentType());
+            }
+            
+            @Override
+            public InputStream getStream() throws IOException {
+                return governor.throttle(cs.getStream());
+            }
+        };
+    }
+    
+    private static long getSize(File fl, BasicFileAttributes attr) {
+        if (attr instanceof FileMetadata) {
+            return ((FileMetadata)attr).getTotalSize();
+        } else if (attr != null) {
+            return attr.size();
+        }
+        return fl.length();
+    }
+    
+    // blocks the caller while the queue is full, a task bigger than the limit waits for the empty queue
+    private void enqueue(long bytes) {
+        if (Thread.currentThread() == indexerThread) {
+            // called back from a queued task, it can't wait for itself
+            synchronized (queueLock) {
+                queueTasks++;
+                queueBytes += bytes;
+            }
+            return;
+        }
+        synchronized (queueLock) {
+            long started = 0;
+            while (queueTasks >= maxQueueTasks || (queueTasks > 0 && queueBytes + bytes > maxQueueBytes)) {
+                if (started == 0) {
+                    started = System.currentTimeMillis();
+                }
+                try {
+                    queueLock.wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            if (started != 0) {
+                blockedMillis.addAndGet(System.currentTimeMillis() - started);
+            }
+            queueTasks++;
+            queueBytes += bytes;
+        }
+    }
+    
+    private void dequeue(long bytes) {
+        synchronized (queueLock) {
+            queueTasks--;
+            queueBytes -= bytes;
+            queueLock.notifyAll();
+        }
+    }
+    
+    public void setQueueLimits(int maxTasks, long maxBytes) {
+        synchronized (queueLock) {
+            this.maxQueueTasks = Math.max(1, maxTasks);
+            this.maxQueueBytes = maxBytes;
+            queueLock.notifyAll();
+        }
+    }
+    
+    public int getQueueDepth() {
+        synchronized (queueLock) {
+            return queueTasks;
+        }
+    }
+    
+    public long getQueueBytes() {
+        synchronized (queueLock) {
+            return queueBytes;
+        }
+    }
+    
+    // total time the callers waited for the room in the queue
+    public long getBlockedMillis() {
+        return blockedMillis.get();
+    }
+    
     public Throwable addDoc(ContentStreamUpdateRequest ur) {
         try {
             solrClient.request(ur);
@@ -231,13 +544,22 @@ bin\solr stop -p 8983﻿
     public static final String DOC_FULL_TITLE = "full_title_s";
     public static final String DOC_TAGS = "tags_ss";
     public static final String FILE_LASTMODIFIEDTIME = "file_lastModifiedTime_s";
+    public static final String DOC_CONTENT_HASH = "content_hash_s";
+    // the number of the segments of a file stored in segments
+    public static final String DOC_CHUNKS = "chunks_i";
+    // the file is in the part segment, see PackedFiles
+    public static final String DOC_PACKED = "packed_b";
+    // the stored file is gzip, the doc is for its content
+    public static final String DOC_COMPRESSED = "compressed_b";
     
     public static final String LITERALS_PREFIX = "literal.";
     
     //https://wiki.apache.org/solr/ExtractingRequestHandler
     //https://wiki.apache.org/solr/ContentStreamUpdateRequestExample
     public static void addFileAttributes(File fl, HashMap<String, Object> attributes) throws IOException {
-        BasicFileAttributes attr = Files.readAttributes(fl.toPath(), BasicFileAttributes.class);
+        addFileAttributes(Files.readAttributes(fl.toPath(), BasicFileAttributes.class), attributes);
+    }
+    public static void addFileAttributes(BasicFileAttributes attr, HashMap<String, Object> attributes) {
         attributes.put("file_size_l", attr.size());
         attributes.put("file_isSymbolicLink_b", attr.isSymbolicLink());
         attributes.put("file_isRegularFile_b", attr.isRegularFile());
@@ -250,15 +572,35 @@ bin\solr stop -p 8983﻿
     public static ContentStreamUpdateRequest makeUpdateRequest(
             String wpath, String ch, String uuidpath, String path, File fl, String title, String fullTitle,
             HashMap<String, Object> attributes) throws IOException {
+        return makeUpdateRequest(wpath, ch, uuidpath, path, fl, null, title, fullTitle, attributes);
+    }
+    public static ContentStreamUpdateRequest makeUpdateRequest(
+            String wpath, String ch, String uuidpath, String path, File fl, BasicFileAttributes attr, String title, String fullTitle,
+            HashMap<String, Object> attributes) throws IOException {
+        return makeUpdateRequest(wpath, ch, uuidpath, path, fl, attr, title, fullTitle, attributes, true);
+    }
+    // commit - false when the request is a part of a batch committed at once
+    public static ContentStreamUpdateRequest makeUpdateRequest(
+            String wpath, String ch, String uuidpath, String path, File fl, BasicFileAttributes attr, String title, String fullTitle,
+            HashMap<String, Object> attributes, boolean commit) throws IOException {
         
-        addFileAttributes(fl, attributes);
+        if (attr == null) {
+            addFileAttributes(fl, attributes);
+        } else {
+            addFileAttributes(attr, attributes);
+        }
         
         ContentStreamBase cs = new ContentStreamBase.FileStream(fl);
-        return makeUpdateRequest(wpath, ch, uuidpath, path, cs, title, fullTitle, attributes);
+        return makeUpdateRequest(wpath, ch, uuidpath, path, cs, title, fullTitle, attributes, commit);
     }
     public static ContentStreamUpdateRequest makeUpdateRequest(
             String wpath, String ch, String uuidpath, String path, ContentStream cstream, String title, String fullTitle,
             HashMap<String, Object> attributes) throws IOException {
+        return makeUpdateRequest(wpath, ch, uuidpath, path, cstream, title, fullTitle, attributes, true);
+    }
+    public static ContentStreamUpdateRequest makeUpdateRequest(
+            String wpath, String ch, String uuidpath, String path, ContentStream cstream, String title, String fullTitle,
+            HashMap<String, Object> attributes, boolean commit) throws IOException {
         
         ContentStreamUpdateRequest up = new ContentStreamUpdateRequest("/update/extract");
 
@@ -284,7 +626,9 @@ bin\solr stop -p 8983﻿
         up.setParam("fmap.content_type", "content_type_s");
         up.setParam("fmap.content", "_text_");// TODO ? without _s
     
-        up.setAction(AbstractUpdateRequest.ACTION.COMMIT, true, true);
+        if (commit) {
+            up.setAction(AbstractUpdateRequest.ACTION.COMMIT, true, true);
+        }
         return up;
     }
 
@@ -0,0 +1,277 @@
+/*
+ * Copyright 2017 Veronica Anokhina.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.org.sevn.common.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+// rsync like delta: the target is written as the copies of the base blocks and the literal bytes
+// the base blocks are found by a rolling checksum and confirmed by md5,
+// only the block checksums of the base are in memory, the target and the delta are streamed
+// format: MAGIC blockSize, then COPY offset length | LITERAL length bytes, END targetSize
+public class BinaryDelta {
+
+    private static final int MAGIC = 0x54464431; // TFD1
+    private static final int COPY = 1;
+    private static final int LITERAL = 2;
+    private static final int END = 0;
+
+    public static int blockSize(long baseSize) {
+        if (baseSize < 1024 * 1024) {
+            return 2048;
+        } else if (baseSize < 64 * 1024 * 1024) {
+            return 8192;
+        }
+        return 32768;
+    }
+
+    private static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static int weak(int a, int b) {
+        return (a & 0xffff) | (b << 16);
+    }
+
+    private static class Writer {
+        private final DataOutputStream out;
+        private long copyOffset = -1;
+        private int copyLength;
+
+        Writer(DataOutputStream out) {
+            this.out = out;
+        }
+
+        void copy(long offset, int length) throws IOException {
+            if (copyOffset >= 0 && copyOffset + copyLength == offset && copyLength <= Integer.MAX_VALUE - length) {
+                copyLength += length;
+                return;
+            }
+            flushCopy();
+            copyOffset = offset;
+            copyLength = length;
+        }
+
+        void literal(byte[] buf, int from, int to) throws IOException {
+            if (to > from) {
+                flushCopy();
+                out.writeByte(LITERAL);
+                out.writeInt(to - from);
+                out.write(buf, from, to - from);
+            }
+        }
+
+        void flushCopy() throws IOException {
+            if (copyOffset >= 0) {
+                out.writeByte(COPY);
+                out.writeLong(copyOffset);
+                out.writeInt(copyLength);
+                copyOffset = -1;
+            }
+        }
+    }
+
+    // writes the delta making target from base, returns the sha256 of the target
+    public static byte[] create(Path base, Path target, OutputStream deltaOut) throws IOException {
+        int bs = blockSize(Files.size(base));
+        HashMap<Integer, List<Integer>> weakToBlocks = new HashMap<>();
+        ArrayList<byte[]> strong = new ArrayList<>();
+        MessageDigest md5 = md5();
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(base), 64 * 1024)) {
+            byte[] block = new byte[bs];
+            int idx = 0;
+            while (readFully(in, block) == bs) {
+                int a = 0;
+                int b = 0;
+                for (int i = 0; i < bs; i++) {
+                    int x = block[i] & 0xff;
+                    a += x;
+                    b += (bs - i) * x;
+                }
+                weakToBlocks.computeIfAbsent(weak(a, b), k -> new ArrayList<>(1)).add(idx);
+                strong.add(md5.digest(block));
+                idx++;
+            }
+        }
+
+        MessageDigest sha = FileTransfer.newDigest();
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(deltaOut, 64 * 1024));
+        out.writeInt(MAGIC);
+        out.writeInt(bs);
+        Writer w = new Writer(out);
+        long targetSize = 0;
+        try (InputStream in = Files.newInputStream(target)) {
+            byte[] buf = new byte[Math.max(4 * bs, 1024 * 1024)];
+            int start = 0;
+            int end = 0;
+            int lit = 0;
+            boolean eof = false;
+            boolean valid = false;
+            int a = 0;
+            int b = 0;
+            while (true) {
+                if (!eof && end - start <= bs) {
+                    // the literal so far is written, the window is moved to the buffer start
+                    w.literal(buf, lit, start);
+                    System.arraycopy(buf, start, buf, 0, end - start);
+                    end -= start;
+                    start = 0;
+                    lit = 0;
+                    while (end < buf.length) {
+                        int r = in.read(buf, end, buf.length - end);
+                        if (r < 0) {
+                            eof = true;
+                            break;
+                        }
+                        sha.update(buf, end, r);
+                        targetSize += r;
+                        end += r;
+                    }
+                }
+                if (end - start < bs) {
+                    break;
+                }
+                if (!valid) {
+                    a = 0;
+                    b = 0;
+                    for (int i = 0; i < bs; i++) {
+                        int x = buf[start + i] & 0xff;
+                        a += x;
+                        b += (bs - i) * x;
+                    }
+                    valid = true;
+                }
+                int found = find(weakToBlocks.get(weak(a, b)), strong, md5, buf, start, bs);
+                if (found >= 0) {
+                    w.literal(buf, lit, start);
+                    w.copy((long) found * bs, bs);
+                    start += bs;
+                    lit = start;
+                    valid = false;
+                } else if (end - start > bs) {
+                    int xo = buf[start] & 0xff;
+                    int xn = buf[start + bs] & 0xff;
+                    a = a - xo + xn;
+                    b = b - bs * xo + a;
+                    start++;
+                } else {
+                    start++;
+                    valid = false;
+                }
+            }
+            w.literal(buf, lit, end);
+        }
+        w.flushCopy();
+        out.writeByte(END);
+        out.writeLong(targetSize);
+        out.flush();
+        return sha.digest();
+    }
+
+    private static int find(List<Integer> candidates, List<byte[]> strong, MessageDigest md5, byte[] buf, int start, int bs) {
+        if (candidates == null) {
+            return -1;
+        }
+        md5.update(buf, start, bs);
+        byte[] h = md5.digest();
+        for (int idx : candidates) {
+            if (Arrays.equals(h, strong.get(idx))) {
+                return idx;
+            }
+        }
+        return -1;
+    }
+
+    private static int readFully(InputStream in, byte[] buf) throws IOException {
+        int n = 0;
+        while (n < buf.length) {
+            int r = in.read(buf, n, buf.length - n);
+            if (r < 0) {
+                break;
+            }
+            n += r;
+        }
+        return n;
+    }
+
+    // writes the target made from base and the delta, returns its size
+    public static long apply(Path base, InputStream deltaIn, OutputStream out) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(deltaIn, 64 * 1024));
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a delta");
+        }
+        in.readInt();
+        byte[] buf = new byte[64 * 1024];
+        long written = 0;
+        try (RandomAccessFile raf = new RandomAccessFile(base.toFile(), "r")) {
+            while (true) {
+                int op = in.readByte();
+                if (op == END) {
+                    long size = in.readLong();
+                    if (size != written) {
+                        throw new IOException("Delta size " + written + " != " + size);
+                    }
+                    return written;
+                }
+                int length;
+                if (op == COPY) {
+                    raf.seek(in.readLong());
+                    length = in.readInt();
+                    for (int left = length; left > 0;) {
+                        int r = raf.read(buf, 0, Math.min(buf.length, left));
+                        if (r < 0) {
+                            throw new EOFException("Delta base " + base + " is shorter");
+                        }
+                        out.write(buf, 0, r);
+                        left -= r;
+                    }
+                } else if (op == LITERAL) {
+                    length = in.readInt();
+                    for (int left = length; left > 0;) {
+                        int r = in.read(buf, 0, Math.min(buf.length, left));
+                        if (r < 0) {
+                            throw new EOFException("Delta is cut");
+                        }
+                        out.write(buf, 0, r);
+                        left -= r;
+                    }
+                } else {
+                    throw new IOException("Wrong delta op " + op);
+                }
+                written += length;
+            }
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2017 Veronica Anokhina.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.org.sevn.common.util;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// when the written files and the directory entries (renames, new files) reach the disk
+// NONE - when the OS writes them, BATCHED - the files and the directories of a time window share one sync
+// in the background, a crash loses at most the window, STRICT - every change is synced before the call returns
+// a file replacing another one (tmp + rename) is synced before the rename unless NONE, see before
+public class Durability {
+
+    public enum Mode {
+        NONE, BATCHED, STRICT
+    }
+
+    private volatile Mode mode = Mode.NONE;
+    private volatile long windowMillis = 200;
+    private final LinkedHashSet<Path> pendingFiles = new LinkedHashSet<>();
+    private final LinkedHashSet<Path> pendingDirs = new LinkedHashSet<>();
+    private ScheduledExecutorService flusher;
+    private long syncs;
+    private long rounds;
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public synchronized void setMode(Mode mode) {
+        this.mode = mode;
+        if (mode == Mode.BATCHED) {
+            startFlusher();
+        } else {
+            stopFlusher();
+            flush();
+        }
+    }
+
+    public long getWindowMillis() {
+        return windowMillis;
+    }
+
+    public synchronized void setWindowMillis(long windowMillis) {
+        this.windowMillis = Math.max(1, windowMillis);
+        if (flusher != null) {
+            stopFlusher();
+            startFlusher();
+        }
+    }
+
+    private void startFlusher() {
+        if (flusher == null) {
+            flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "tfstore-sync");
+                t.setDaemon(true);
+                return t;
+            });
+            flusher.scheduleWithFixedDelay(this::flush, windowMillis, windowMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void stopFlusher() {
+        if (flusher != null) {
+            flusher.shutdown();
+            flusher = null;
+        }
+    }
+
+    // the content of the file was written
+    public void file(Path file) {
+        changed(file, false);
+    }
+
+    // an entry of the directory was created, renamed or deleted
+    public void dir(Path dir) {
+        changed(dir, true);
+    }
+
+    private void changed(Path p, boolean dir) {
+        switch (mode) {
+            case STRICT:
+                sync(p, dir);
+                break;
+            case BATCHED:
+                synchronized (pendingFiles) {
+                    (dir ? pendingDirs : pendingFiles).add(p);
+                }
+                break;
+            default:
+        }
+    }
+
+    // the file is renamed over another one or its source is deleted next, a directory - its entries
+    public void before(Path p) {
+        if (mode != Mode.NONE) {
+            sync(p, Files.isDirectory(p));
+        }
+    }
+
+    // the files first, then the directories with their entries
+    public void flush() {
+        ArrayList<Path> files;
+        ArrayList<Path> dirs;
+        synchronized (pendingFiles) {
+            if (pendingFiles.isEmpty() && pendingDirs.isEmpty()) {
+                return;
+            }
+            files = new ArrayList<>(pendingFiles);
+            dirs = new ArrayList<>(pendingDirs);
+            pendingFiles.clear();
+            pendingDirs.clear();
+        }
+        for (Path p : files) {
+            sync(p, false);
+        }
+        for (Path p : dirs) {
+            sync(p, true);
+        }
+        synchronized (this) {
+            rounds++;
+        }
+    }
+
+    private void sync(Path p, boolean dir) {
+        try (FileChannel ch = FileChannel.open(p, StandardOpenOption.READ)) {
+            ch.force(true);
+        } catch (IOException ex) {
+            // a directory can't be opened on some systems, a file may be moved or deleted already
+            if (!dir) {
+                Logger.getLogger(Durability.class.getName()).log(Level.FINE, "Not synced " + p, ex);
+            }
+            return;
+        }
+        synchronized (this) {
+            syncs++;
+        }
+    }
+
+    public synchronized long getSyncs() {
+        return syncs;
+    }
+
+    public synchronized void shutdown() {
+        stopFlusher();
+        flush();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return mode + " window " + windowMillis + " ms, syncs " + syncs + ", rounds " + rounds;
+    }
+}
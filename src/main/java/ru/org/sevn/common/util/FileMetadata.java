@@ -0,0 +1,183 @@
+/*
+ * Copyright 2017 Veronica Anokhina.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.org.sevn.common.util;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+
+// attributes of a file read once, with the size of the whole tree for a directory
+public class FileMetadata implements BasicFileAttributes {
+
+    private final FileTime lastModifiedTime;
+    private final FileTime lastAccessTime;
+    private final FileTime creationTime;
+    private final boolean regularFile;
+    private final boolean directory;
+    private final boolean symbolicLink;
+    private final boolean other;
+    private final long size;
+    private final Object fileKey;
+    private final long totalSize;
+
+    private FileMetadata(BasicFileAttributes attr, long totalSize) {
+        this.lastModifiedTime = attr.lastModifiedTime();
+        this.lastAccessTime = attr.lastAccessTime();
+        this.creationTime = attr.creationTime();
+        this.regularFile = attr.isRegularFile();
+        this.directory = attr.isDirectory();
+        this.symbolicLink = attr.isSymbolicLink();
+        this.other = attr.isOther();
+        this.size = attr.size();
+        this.fileKey = attr.fileKey();
+        this.totalSize = totalSize;
+    }
+
+    // the attributes of the content stored in another form, e.g. in segments
+    public FileMetadata withContent(long size, FileTime lastModifiedTime) {
+        FileMetadata m = this;
+        return new FileMetadata(new BasicFileAttributes() {
+            @Override
+            public FileTime lastModifiedTime() {
+                return lastModifiedTime;
+            }
+
+            @Override
+            public FileTime lastAccessTime() {
+                return m.lastAccessTime;
+            }
+
+            @Override
+            public FileTime creationTime() {
+                return m.creationTime;
+            }
+
+            @Override
+            public boolean isRegularFile() {
+                return m.regularFile;
+            }
+
+            @Override
+            public boolean isDirectory() {
+                return m.directory;
+            }
+
+            @Override
+            public boolean isSymbolicLink() {
+                return m.symbolicLink;
+            }
+
+            @Override
+            public boolean isOther() {
+                return m.other;
+            }
+
+            @Override
+            public long size() {
+                return size;
+            }
+
+            @Override
+            public Object fileKey() {
+                return m.fileKey;
+            }
+        }, size);
+    }
+
+    public static FileMetadata read(Path path) throws IOException {
+        BasicFileAttributes attr = Files.readAttributes(path, BasicFileAttributes.class);
+        long total = 0;
+        if (attr.isDirectory()) {
+            total = treeSize(path);
+        } else if (attr.isRegularFile()) {
+            total = attr.size();
+        }
+        return new FileMetadata(attr, total);
+    }
+
+    // sum of the regular file sizes, one stat per entry
+    public static long treeSize(Path dir) throws IOException {
+        long[] ret = new long[1];
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (attrs.isRegularFile()) {
+                    ret[0] += attrs.size();
+                }
+                return FileVisitResult.CONTINUE;
+            }
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return ret[0];
+    }
+
+    // size of the file or of all the files of the directory
+    public long getTotalSize() {
+        return totalSize;
+    }
+
+    @Override
+    public FileTime lastModifiedTime() {
+        return lastModifiedTime;
+    }
+
+    @Override
+    public FileTime lastAccessTime() {
+        return lastAccessTime;
+    }
+
+    @Override
+    public FileTime creationTime() {
+        return creationTime;
+    }
+
+    @Override
+    public boolean isRegularFile() {
+        return regularFile;
+    }
+
+    @Override
+    public boolean isDirectory() {
+        return directory;
+    }
+
+    @Override
+    public boolean isSymbolicLink() {
+        return symbolicLink;
+    }
+
+    @Override
+    public boolean isOther() {
+        return other;
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public Object fileKey() {
+        return fileKey;
+    }
+}
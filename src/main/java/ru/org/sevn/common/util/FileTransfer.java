@@ -0,0 +1,274 @@
+/*
+ * Copyright 2017 Veronica Anokhina.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.org.sevn.common.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// moves files and directories between file systems:
+// rename when possible, else zero-copy transfer, fsync, check and only then the source is deleted
+public class FileTransfer {
+
+    public static String DIGEST = "SHA-256";
+    public static int CHUNK = 8 * 1024 * 1024;
+
+    private final ExecutorService executor;
+    private volatile IOGovernor governor;
+    private volatile Durability durability = new Durability();
+
+    // threads - files of a directory copied at once
+    public FileTransfer(int threads) {
+        this.executor = (threads > 1) ? Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "file-transfer");
+            t.setDaemon(true);
+            return t;
+        }) : null;
+    }
+
+    public void setIOGovernor(IOGovernor governor) {
+        this.governor = governor;
+    }
+
+    public void setDurability(Durability durability) {
+        this.durability = durability;
+    }
+
+    // returns the checksum of the copied file, null if it was renamed or is a directory
+    public byte[] move(Path src, Path dst) throws IOException {
+        try {
+            Files.move(src, dst, StandardCopyOption.ATOMIC_MOVE);
+            durability.dir(dst.getParent());
+            return null;
+        } catch (AtomicMoveNotSupportedException ex) {
+            // other file system
+        }
+        if (Files.isDirectory(src)) {
+            moveTree(src, dst);
+            return null;
+        }
+        byte[] ret = copy(src, dst);
+        // the copy is synced, its name is synced before the source is deleted
+        durability.before(dst.getParent());
+        Files.delete(src);
+        return ret;
+    }
+
+    private void moveTree(Path src, Path dst) throws IOException {
+        ArrayList<Path> files = new ArrayList<>();
+        ArrayList<Path> dirs = new ArrayList<>();
+        Files.walkFileTree(src, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                Files.createDirectories(dst.resolve(src.relativize(dir).toString()));
+                dirs.add(dir);
+                return FileVisitResult.CONTINUE;
+            }
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                files.add(file);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        forEach(files, f -> copy(f, dst.resolve(src.relativize(f).toString())));
+        // everything is copied and checked, the names are synced before the sources are deleted
+        for (Path d : dirs) {
+            durability.before(dst.resolve(src.relativize(d).toString()));
+        }
+        durability.before(dst.getParent());
+        for (Path f : files) {
+            Files.delete(f);
+        }
+        for (int i = dirs.size() - 1; i >= 0; i--) {
+            Path d = dirs.get(i);
+            Files.setLastModifiedTime(dst.resolve(src.relativize(d).toString()), Files.getLastModifiedTime(d));
+            Files.delete(d);
+        }
+    }
+
+    private interface PathTask {
+        byte[] run(Path path) throws IOException;
+    }
+
+    // on the pool if there is one, the results are in the order of the paths
+    private ArrayList<byte[]> forEach(Collection<Path> paths, PathTask task) throws IOException {
+        ArrayList<byte[]> ret = new ArrayList<>();
+        if (executor == null) {
+            for (Path p : paths) {
+                ret.add(task.run(p));
+            }
+            return ret;
+        }
+        ArrayList<Future<byte[]>> results = new ArrayList<>();
+        for (Path p : paths) {
+            results.add(executor.submit(() -> task.run(p)));
+        }
+        for (Future<byte[]> r : results) {
+            try {
+                ret.add(r.get());
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted", ex);
+            } catch (ExecutionException ex) {
+                throw (ex.getCause() instanceof IOException) ? (IOException)ex.getCause() : new IOException(ex.getCause());
+            }
+        }
+        return ret;
+    }
+
+    // the data goes with transferTo, the checksum is read from the same range just after it
+    // (from the page cache), the target is synced and its checksum is compared
+    public byte[] copy(Path src, Path dst) throws IOException {
+        byte[] ret = copyRange(src, 0, Files.size(src), dst, null);
+        Files.setLastModifiedTime(dst, Files.getLastModifiedTime(src));
+        return ret;
+    }
+
+    // the range of src to the new file dst, whole - the checksum of the whole src if it's copied by the ranges in order
+    public byte[] copyRange(Path src, long from, long length, Path dst, MessageDigest whole) throws IOException {
+        MessageDigest md = newDigest();
+        ByteBuffer buf = ByteBuffer.allocateDirect(Math.min(CHUNK, 1024 * 1024));
+        IOGovernor g = governor;
+        if (g != null) {
+            g.acquireOps(2);
+        }
+        try (FileChannel in = FileChannel.open(src, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(dst, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            long size = from + length;
+            long pos = from;
+            while (pos < size) {
+                long n = Math.min(CHUNK, size - pos);
+                if (g != null) {
+                    g.acquireBytes(n);
+                }
+                long done = 0;
+                while (done < n) {
+                    long t = in.transferTo(pos + done, n - done, out);
+                    if (t <= 0) {
+                        throw new IOException("Can't copy " + src + " at " + (pos + done));
+                    }
+                    done += t;
+                }
+                update(md, whole, in, pos, n, buf);
+                pos += n;
+            }
+            out.force(true);
+        } catch (IOException ex) {
+            Files.deleteIfExists(dst);
+            throw ex;
+        }
+        byte[] ret = md.digest();
+        if (!Arrays.equals(ret, checksum(dst, buf))) {
+            Files.deleteIfExists(dst);
+            throw new IOException("Checksum mismatch: " + src + " -> " + dst);
+        }
+        return ret;
+    }
+
+    // checksum of the file read through the governor
+    public byte[] digest(Path path) throws IOException {
+        IOGovernor g = governor;
+        if (g != null) {
+            g.acquireOps(1);
+            g.acquireBytes(Files.size(path));
+        }
+        return checksum(path);
+    }
+
+    // checksums of several files, in parallel if there is a pool
+    public Map<Path, byte[]> digestAll(Collection<Path> paths) throws IOException {
+        ArrayList<byte[]> digests = forEach(paths, this::digest);
+        LinkedHashMap<Path, byte[]> ret = new LinkedHashMap<>();
+        int i = 0;
+        for (Path p : paths) {
+            ret.put(p, digests.get(i++));
+        }
+        return ret;
+    }
+
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(DIGEST);
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    public static byte[] checksum(Path path) throws IOException {
+        return checksum(path, ByteBuffer.allocateDirect(1024 * 1024));
+    }
+
+    private static byte[] checksum(Path path, ByteBuffer buf) throws IOException {
+        MessageDigest md = newDigest();
+        try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ)) {
+            update(md, null, in, 0, in.size(), buf);
+        }
+        return md.digest();
+    }
+
+    private static void update(MessageDigest md, MessageDigest md2, FileChannel in, long pos, long n, ByteBuffer buf) throws IOException {
+        long end = pos + n;
+        while (pos < end) {
+            buf.clear();
+            if (end - pos < buf.capacity()) {
+                buf.limit((int)(end - pos));
+            }
+            int r = in.read(buf, pos);
+            if (r < 0) {
+                throw new IOException("Unexpected end of file at " + pos);
+            }
+            buf.flip();
+            if (md2 != null) {
+                md2.update(buf.duplicate());
+            }
+            md.update(buf);
+            pos += r;
+        }
+    }
+
+    public static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    public void shutdown() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2017 Veronica Anokhina.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.org.sevn.common.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.List;
+
+// token buckets for the bytes and the operations per second, 0 - no limit
+// the limits may differ by the time of day, see setSchedule
+public class IOGovernor {
+
+    private static class Window {
+        private final int fromHour;
+        private final int toHour;
+        private final double mbps;
+        private final double iops;
+
+        Window(int fromHour, int toHour, double mbps, double iops) {
+            this.fromHour = fromHour;
+            this.toHour = toHour;
+            this.mbps = mbps;
+            this.iops = iops;
+        }
+
+        boolean contains(int hour) {
+            if (fromHour <= toHour) {
+                return hour >= fromHour && hour < toHour;
+            }
+            // over midnight: 22-6
+            return hour >= fromHour || hour < toHour;
+        }
+    }
+
+    private static class Bucket {
+        private double tokens;
+        private long last = System.nanoTime();
+
+        // returns nanos to wait, the tokens may go below zero to keep the order
+        long take(double rate, double n) {
+            long now = System.nanoTime();
+            tokens = Math.min(rate, tokens + (now - last) * rate / 1e9);
+            last = now;
+            tokens -= n;
+            if (tokens >= 0) {
+                return 0;
+            }
+            return (long)(-tokens * 1e9 / rate);
+        }
+    }
+
+    private double mbps;
+    private double iops;
+    private List<Window> schedule = new ArrayList<>();
+    private String scheduleSpec = "";
+    private final Bucket bytes = new Bucket();
+    private final Bucket ops = new Bucket();
+
+    public IOGovernor() {
+        this(0, 0);
+    }
+
+    public IOGovernor(double mbps, double iops) {
+        this.mbps = mbps;
+        this.iops = iops;
+    }
+
+    public synchronized double getMBps() {
+        return mbps;
+    }
+
+    public synchronized void setMBps(double mbps) {
+        this.mbps = mbps;
+    }
+
+    public synchronized double getIops() {
+        return iops;
+    }
+
+    public synchronized void setIops(double iops) {
+        this.iops = iops;
+    }
+
+    public synchronized String getSchedule() {
+        return scheduleSpec;
+    }
+
+    // from-to:MBps:iops,... hours of the local time, e.g. 22-6:100:500,6-22:20:100
+    // the hours out of the schedule use setMBps/setIops limits
+    public void setSchedule(String spec) {
+        ArrayList<Window> windows = new ArrayList<>();
+        if (spec != null) {
+            for (String w : spec.split(",")) {
+                w = w.trim();
+                if (w.isEmpty()) {
+                    continue;
+                }
+                String[] parts = w.split(":");
+                String[] hours = parts[0].split("-");
+                if (parts.length != 3 || hours.length != 2) {
+                    throw new IllegalArgumentException("Wrong schedule window: " + w);
+                }
+                windows.add(new Window(Integer.parseInt(hours[0].trim()), Integer.parseInt(hours[1].trim()),
+                        Double.parseDouble(parts[1]), Double.parseDouble(parts[2])));
+            }
+        }
+        synchronized (this) {
+            schedule = windows;
+            scheduleSpec = (spec == null) ? "" : spec;
+        }
+    }
+
+    private Window current() {
+        int hour = LocalTime.now().getHour();
+        for (Window w : schedule) {
+            if (w.contains(hour)) {
+                return w;
+            }
+        }
+        return null;
+    }
+
+    public void acquireBytes(long n) {
+        long wait;
+        synchronized (this) {
+            Window w = current();
+            double rate = ((w == null) ? mbps : w.mbps) * 1024 * 1024;
+            wait = (rate > 0) ? bytes.take(rate, n) : 0;
+        }
+        sleep(wait);
+    }
+
+    public void acquireOps(int n) {
+        long wait;
+        synchronized (this) {
+            Window w = current();
+            double rate = (w == null) ? iops : w.iops;
+            wait = (rate > 0) ? ops.take(rate, n) : 0;
+        }
+        sleep(wait);
+    }
+
+    private static void sleep(long nanos) {
+        if (nanos > 0) {
+            try {
+                Thread.sleep(nanos / 1000000, (int)(nanos % 1000000));
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // the open is one operation, every read takes its bytes
+    public InputStream throttle(InputStream in) {
+        acquireOps(1);
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int ret = super.read();
+                if (ret >= 0) {
+                    acquireBytes(1);
+                }
+                return ret;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int ret = super.read(b, off, len);
+                if (ret > 0) {
+                    acquireBytes(ret);
+                }
+                return ret;
+            }
+        };
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "io " + mbps + " MB/s, " + iops + " iops, schedule " + scheduleSpec;
+    }
+}
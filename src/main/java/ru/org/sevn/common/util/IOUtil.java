@@ -18,12 +18,60 @@ package ru.org.sevn.common.util;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 public class IOUtil {
 
+    // entries are read lazily, the directory listing is never held in memory as a whole
+    public static boolean forEachFile(File dir, Consumer<File> consumer) {
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir.toPath())) {
+            for (Path p : ds) {
+                consumer.accept(p.toFile());
+            }
+            return true;
+        } catch (IOException | DirectoryIteratorException ex) {
+            Logger.getLogger(IOUtil.class.getName()).log(Level.SEVERE, "Can't list " + dir, ex);
+        }
+        return false;
+    }
+
+    // the directory with everything under it, the links are deleted, not followed
+    public static void deleteTree(Path path) throws IOException {
+        Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                if (exc != null) {
+                    throw exc;
+                }
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+    
     public static boolean moveDirOverwrite(File srcDir, File destDir, boolean deleteSrc) throws FileNotFoundException, IOException {
+        return moveDirOverwrite(srcDir, destDir, deleteSrc, null);
+    }
+    
+    // governor - every move is an operation of it, may be null
+    public static boolean moveDirOverwrite(File srcDir, File destDir, boolean deleteSrc, IOGovernor governor) throws FileNotFoundException, IOException {
         boolean ret = false;
         if (srcDir == null) {
             throw new NullPointerException("Source must not be null");
@@ -43,24 +91,35 @@ public class IOUtil {
                 throw new IOException("Source '" + destDir + "' is not a directory");
             }
             boolean removeSrc = true;
-            for (File f : srcDir.listFiles()) {
+            // the entries are moved after the stream is closed, not out of the directory being read
+            ArrayList<File> entries = new ArrayList<>();
+            try (DirectoryStream<Path> ds = Files.newDirectoryStream(srcDir.toPath())) {
+                for (Path p : ds) {
+                    entries.add(p.toFile());
+                }
+            } catch (DirectoryIteratorException ex) {
+                throw ex.getCause();
+            }
+            for (File f : entries) {
                 File f2 = new File(destDir, f.getName());
                 if (f2.exists()) {
                     if (f.isDirectory()) {
                         if (f2.isDirectory()) {
-                            boolean r = moveDirOverwrite(f, f2, deleteSrc);
+                            boolean r = moveDirOverwrite(f, f2, deleteSrc, governor);
                             if (!r) { removeSrc = false; }
                         } else {
                             removeSrc = false;
                         }
                     } else {
                         if (!f2.isDirectory()) {
+                            acquireOps(governor);
                             Files.move(f.toPath(), f2.toPath(), StandardCopyOption.REPLACE_EXISTING);
                         } else {
                             removeSrc = false;
                         }
                     }
                 } else {
+                    acquireOps(governor);
                     Files.move(f.toPath(), f2.toPath(), StandardCopyOption.REPLACE_EXISTING);
                 }
             }
@@ -74,8 +133,15 @@ public class IOUtil {
             }
         } else {
             destDir.getParentFile().mkdirs();
+            acquireOps(governor);
             return srcDir.renameTo(destDir);
         }
         return ret;
     }
+
+    private static void acquireOps(IOGovernor governor) {
+        if (governor != null) {
+            governor.acquireOps(1);
+        }
+    }
 }
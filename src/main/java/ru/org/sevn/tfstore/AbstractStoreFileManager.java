@@ -17,30 +17,63 @@ package ru.org.sevn.tfstore;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Paths;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrRequest;
 import org.apache.solr.client.solrj.SolrServerException;
 import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.util.ContentStreamBase;
 import org.noggit.JSONUtil;
 import org.noggit.ObjectBuilder;
+import ru.org.sevn.common.mime.Mime;
 import ru.org.sevn.common.solr.SolrIndexer;
 import ru.org.sevn.common.solr.SolrSelect;
+import ru.org.sevn.common.util.Durability;
+import ru.org.sevn.common.util.FileMetadata;
+import ru.org.sevn.common.util.FileTransfer;
+import ru.org.sevn.common.util.IOGovernor;
 import ru.org.sevn.common.util.IOUtil;
 
 public abstract class AbstractStoreFileManager implements StoreFileManager {
 
-    protected final Pattern nameP = Pattern.compile("p\\d{1,2}");
+    protected final Pattern nameP = Pattern.compile("p\\d{1,9}");
     
     public static String PART_NAME = "p";
     public static String PART_INFO = ".info";
@@ -50,52 +83,311 @@ public abstract class AbstractStoreFileManager implements StoreFileManager {
     private final File tempdir;
     private AtomicInteger lastnum = new AtomicInteger(0);
     private HashMap<Integer, PartInfo> parts = new HashMap();
+    // the open parts by their free space, the sizes of the open parts are changed through it
+    private PartAllocator allocator = new PartAllocator(MAX_SIZE1);
+    // the parts are filled toward the disc, null - toward MAX_SIZE1 by the length of the files
+    private volatile MediaProfile media;
+    // the new items wait here up to the limit in bytes and are stored the biggest first, 0 - at once
+    private volatile long stageLimit = 0;
+    private final Object stageLock = new Object();
+    private ArrayList<FileInfo> staged = new ArrayList<>();
+    private final HashSet<String> stagedNames = new HashSet<>();
+    private long stagedBytes;
+    private volatile BiConsumer<Path, Errors> stagedResults;
     private SolrIndexer indexer;
+    private volatile IOGovernor ioGovernor;
+    private volatile Durability durability = new Durability();
+    private volatile FileTransfer fileTransfer = new FileTransfer(1);
+    // the same content is stored once, the other names are hard links to it
+    // off by default: a new file is read in full for its hash before the move, which is a rename otherwise
+    private volatile boolean dedup = false;
+    private final HashIndex hashIndex;
+    private final HashMap<Integer, PartManifest> manifests = new HashMap<>();
+    private final HashMap<Integer, PartJournal> journals = new HashMap<>();
+    // the journal lines after which pN.info is written again
+    private volatile int compactEvery = 1000;
+    // the regular files smaller than it are appended to the part segment, 0 - every file gets its own directory
+    private volatile long packThreshold = 0;
+    private final HashMap<Integer, PackedFiles> packs = new HashMap<>();
+    // the text documents (see Mime.isTextDocument) are stored gzipped if it saves at least 1/10
+    private volatile boolean compress = false;
+    public static final String COMPRESSED_SUFFIX = ".gz";
+    // files with the same name are added one at a time, see addFileIn
+    private final Object[] nameLocks = new Object[64];
 
+    // a line in pN.journal, pN.info is written when the journal gets long, see compact
     private synchronized void storeFileInfo(PartInfo pi, FileInfo file) {
         if (file.isIndexed()) {
             pi.removeFileInfo(file);
         } else {
             pi.addFileInfo(file);
         }
+        journal(pi, file);
+        compactIfLong(pi);
+    }
+    
+    private void journal(PartInfo pi, FileInfo file) {
+        try {
+            PartJournal j = getJournal(pi.getNum());
+            if (file.isIndexed()) {
+                j.indexed(pi, file);
+            } else {
+                j.add(pi, file);
+            }
+            journalSynced(j);
+        } catch (IOException ex) {
+            Logger.getLogger(AbstractStoreFileManager.class.getName()).log(Level.SEVERE, null, ex);
+            compact(pi);
+        }
+    }
+    
+    // the size of the part in the journal
+    private synchronized void journalSize(PartInfo pi) {
+        try {
+            PartJournal j = getJournal(pi.getNum());
+            j.size(pi);
+            journalSynced(j);
+        } catch (IOException ex) {
+            Logger.getLogger(AbstractStoreFileManager.class.getName()).log(Level.SEVERE, null, ex);
+            compact(pi);
+        }
+    }
+    
+    private void journalSynced(PartJournal j) {
+        durability.file(j.getFile().toPath());
+        if (j.getRecords() == 1) {
+            durability.dir(dir.getAbsoluteFile().toPath());
+        }
+    }
+    
+    // the stored file and the directories up to the store dir, they may be new
+    private void synced(Path stored) {
+        durability.file(stored);
+        syncedDirs(stored.toAbsolutePath().getParent());
+    }
+    
+    // the directory and its parents up to the store dir
+    private void syncedDirs(Path d) {
+        Path root = dir.getAbsoluteFile().toPath();
+        for (Path p = d.toAbsolutePath(); p != null && p.startsWith(root); p = p.getParent()) {
+            durability.dir(p);
+        }
+    }
+    
+    // the source in in/ is deleted next, it's the only other copy: the stored file and the directories
+    // up to the store dir are synced now unless NONE, not in the next BATCHED window
+    private void syncedBefore(Path stored) {
+        durability.before(stored);
+        beforeDirs(stored.toAbsolutePath().getParent());
+    }
+    
+    private void beforeDirs(Path d) {
+        Path root = dir.getAbsoluteFile().toPath();
+        for (Path p = d.toAbsolutePath(); p != null && p.startsWith(root); p = p.getParent()) {
+            durability.before(p);
+        }
+    }
+    
+    private void compactIfLong(PartInfo pi) {
+        if (getJournal(pi.getNum()).getRecords() >= compactEvery) {
+            compact(pi);
+        }
+    }
+    
+    // pN.info is the snapshot of the part, the journal is emptied after it is written
+    protected synchronized void compact(PartInfo pi) {
         try {
             writePartInfo(pi);
+            getJournal(pi.getNum()).reset();
         } catch (Exception ex) {
             //TODO FATAL
             Logger.getLogger(AbstractStoreFileManager.class.getName()).log(Level.SEVERE, null, ex);
         }
     }
     
+    public synchronized PartJournal getJournal(int num) {
+        PartJournal ret = journals.get(num);
+        if (ret == null) {
+            ret = new PartJournal(getPartDataDir(num));
+            journals.put(num, ret);
+        }
+        return ret;
+    }
+    
+    // the files of a batch share one log flush, one sync of the journals and one Solr commit
+    // the pN.journal line and the log line of a batched file are written before addFile returns,
+    // so restoreIndexing indexes it after a crash, see addedNew
+    private static class Added {
+        private final FileInfo file;
+        private final PartInfo pi;
+        Added(FileInfo file, PartInfo pi) {
+            this.file = file;
+            this.pi = pi;
+        }
+    }
+    // 1 - every file is stored and indexed at once
+    private int batchSize = 1;
+    private long batchMillis = 0;
+    private ArrayList<Added> batch = new ArrayList<>();
+    private long batchStarted;
+    // a batch is flushed when its window is over even if no other file comes
+    private static final ScheduledExecutorService BATCH_TIMER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "tfstore-batch");
+        t.setDaemon(true);
+        return t;
+    });
+    private ScheduledFuture<?> batchTimer;
+    
+    private synchronized void storeFileInfo(Collection<Added> added) {
+        HashSet<PartInfo> touched = new HashSet<>();
+        for (Added a : added) {
+            if (a.file.isIndexed()) {
+                a.pi.removeFileInfo(a.file);
+            } else {
+                a.pi.addFileInfo(a.file);
+            }
+            journal(a.pi, a.file);
+            touched.add(a.pi);
+        }
+        for (PartInfo pi : touched) {
+            compactIfLong(pi);
+        }
+    }
+    
+    public void setBatch(int size, long millis) {
+        flush();
+        synchronized (this) {
+            this.batchSize = Math.max(1, size);
+            this.batchMillis = millis;
+            if (batchTimer != null) {
+                batchTimer.cancel(false);
+                batchTimer = null;
+            }
+            if (batchSize > 1 && batchMillis > 0) {
+                batchTimer = BATCH_TIMER.scheduleWithFixedDelay(this::flushIfDue, batchMillis, batchMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+    
+    private void flushIfDue() {
+        ArrayList<Added> due = null;
+        synchronized (this) {
+            if (!batch.isEmpty() && System.currentTimeMillis() - batchStarted >= batchMillis) {
+                due = batch;
+                batch = new ArrayList<>();
+            }
+        }
+        if (due != null) {
+            try {
+                flush(due);
+            } catch (Exception ex) {
+                Logger.getLogger(AbstractStoreFileManager.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+    
+    private void addToBatch(FileInfo file, PartInfo pi) {
+        ArrayList<Added> full = null;
+        synchronized (this) {
+            if (batch.isEmpty()) {
+                batchStarted = System.currentTimeMillis();
+            }
+            batch.add(new Added(file, pi));
+            if (batch.size() >= batchSize || System.currentTimeMillis() - batchStarted >= batchMillis) {
+                full = batch;
+                batch = new ArrayList<>();
+            }
+        }
+        if (full != null) {
+            flush(full);
+        }
+    }
+    
+    // stores and indexes the collected batch
+    public void flush() {
+        drainStaged();
+        ArrayList<Added> added;
+        synchronized (this) {
+            if (batch.isEmpty()) {
+                return;
+            }
+            added = batch;
+            batch = new ArrayList<>();
+        }
+        flush(added);
+    }
+    
+    // the indexer is not called under the manager lock, its callbacks take it
+    private void flush(ArrayList<Added> added) {
+        HashSet<Integer> touched = new HashSet<>();
+        for (Added a : added) {
+            touched.add(a.pi.getNum());
+        }
+        for (Integer num : touched) {
+            // a compacted journal is gone, its snapshot is synced already
+            durability.before(getJournal(num).getFile().toPath());
+        }
+        indexer.getLogger().flush();
+        index(added);
+    }
+    
     public AbstractStoreFileManager(File dir, SolrIndexer indexer) {
         this.indexer = indexer;
         this.dir = dir;
         this.tempdir = new File(dir.getParentFile(), dir.getName() + "_temp");
         this.tempdir.mkdirs();
+        this.hashIndex = new HashIndex(new File(dir, "hashes.log"));
+        for (int i = 0; i < nameLocks.length; i++) {
+            nameLocks[i] = new Object();
+        }
         restoreIndexing();
     }
     
-    public synchronized void restoreIndexing() {
-        for (File f : dir.listFiles()) { 
-            if (f.isDirectory() && nameP.matcher(f.getName()).matches()) {
-                PartInfo pi = readPartInfo(f);
-                lastnum.set(Math.max(lastnum.get(), pi.getNum()));
-                if (pi.getBackUpDate() == null) { //NO BACK UP
-                    parts.put(pi.getNum(), pi);
-                    //restore index queue
-                    System.out.println("restore index queue>>>"+lastnum.get() + ":" + dir.getAbsolutePath()+":"+pi.getJSONObject().toString(2));
-                    for (FileInfo fi : pi.getFileInfoList()) { //TODO it's empty
-                        index(fi, pi);
+    public void restoreIndexing() {
+        ArrayList<Added> toIndex = new ArrayList<>();
+        synchronized (this) {
+            IOUtil.forEachFile(dir, f -> { 
+                if (f.isDirectory() && nameP.matcher(f.getName()).matches()) {
+                    // run again (JMX): a known part keeps its instance, the allocator holds it
+                    PartInfo pi = parts.get(Integer.parseInt(f.getName().substring(1)));
+                    if (pi == null) {
+                        pi = readPartInfo(f);
+                        if (pi == null) {
+                            return;
+                        }
+                        lastnum.set(Math.max(lastnum.get(), pi.getNum()));
+                        if (pi.getBackUpDate() == null) { //NO BACK UP
+                            parts.put(pi.getNum(), pi);
+                            allocator.add(pi);
+                            if (getJournal(pi.getNum()).getFile().exists()) {
+                                compact(pi);
+                            }
+                        }
+                    }
+                    if (pi.getBackUpDate() == null) {
+                        //restore index queue
+                        System.out.println("restore index queue>>>"+lastnum.get() + ":" + dir.getAbsolutePath()+":"+pi.getJSONObject().toString(2));
+                        for (FileInfo fi : pi.getFileInfoList()) { //TODO it's empty
+                            toIndex.add(new Added(fi, pi));
+                        }
                     }
                 }
-            }
+            });
+        }
+        // the indexer queue may be full, it is waited without the manager lock
+        for (Added a : toIndex) {
+            index(a.file, a.pi);
         }
     }
     
     protected synchronized PartInfo selectPartInfoFor(FileInfo fi) {
-        for(PartInfo pi : parts.values()) {
-            if (pi.getSize() + fi.getFileSize() < MAX_SIZE1) {
-                return pi;
-            }
+        return selectPartInfoFor(fi.getFileSize());
+    }
+    
+    protected synchronized PartInfo selectPartInfoFor(long size) {
+        PartInfo pi = allocator.select(size);
+        if (pi != null) {
+            return pi;
         }
         int lnum = this.lastnum.incrementAndGet();
         File npiFile = getPartDataDir(lnum);
@@ -104,9 +396,99 @@ public abstract class AbstractStoreFileManager implements StoreFileManager {
         PartInfo npi = new PartInfo(npiFile);
         npi.setNum(lnum);
         parts.put(npi.getNum(), npi);
+        allocator.add(npi);
         return npi;
     }
     
+    // the part for the size, the size is counted in it
+    protected synchronized PartInfo reserve(long size) {
+        PartInfo pi = selectPartInfoFor(size);
+        touch(pi);
+        allocator.resize(pi, size);
+        return pi;
+    }
+    
+    protected synchronized void release(PartInfo pi, long size) {
+        touch(pi);
+        allocator.resize(pi, -size);
+    }
+    
+    // the part dir is newer than the .info till the .info is written again, see readPartInfo
+    private void touch(PartInfo pi) {
+        getPartDataDir(pi.getNum()).setLastModified(System.currentTimeMillis());
+    }
+    
+    // the open parts are measured one by one, the size of a part is corrected if it was not touched
+    // after its .info was written (no file is on the way in) and meanwhile, returns the number of corrected parts
+    public int verifySizes(long pauseMillis) throws InterruptedException {
+        ArrayList<PartInfo> open;
+        synchronized (this) {
+            open = new ArrayList<>(parts.values());
+        }
+        int ret = 0;
+        for (PartInfo pi : open) {
+            File pdir = getPartDataDir(pi.getNum());
+            long marker = pdir.lastModified();
+            if (Math.max(new File(dir, PART_NAME + pi.getNum() + PART_INFO).lastModified(), getJournal(pi.getNum()).getFile().lastModified()) <= marker) {
+                continue;
+            }
+            if (ioGovernor != null) {
+                ioGovernor.acquireOps(1);
+            }
+            long measured = treeCost(pdir.toPath());
+            synchronized (this) {
+                if (parts.get(pi.getNum()) == pi && pdir.lastModified() == marker && measured != pi.getSize()) {
+                    System.out.println("part size>" + pdir.getAbsolutePath() + " " + pi.getSize() + " -> " + measured);
+                    allocator.resize(pi, measured - pi.getSize());
+                    journalSize(pi);
+                    ret++;
+                }
+            }
+            Thread.sleep(pauseMillis);
+        }
+        return ret;
+    }
+    
+    // what the bytes stored as a file in its own directories take in the part
+    private long storedCost(long bytes) {
+        MediaProfile mp = media;
+        return (mp == null) ? bytes : mp.itemCost(bytes);
+    }
+    
+    private long fileCost(long bytes) {
+        MediaProfile mp = media;
+        return (mp == null) ? bytes : mp.fileCost(bytes);
+    }
+    
+    private long treeCost(Path path) {
+        MediaProfile mp = media;
+        return (mp == null) ? FileInfo.calculatePathSize(path) : mp.measure(path);
+    }
+    
+    private long itemCost(FileInfo file) {
+        MediaProfile mp = media;
+        if (mp == null || !file.isDirectory()) {
+            return storedCost(file.getFileSize());
+        }
+        return mp.measure(file.getPath()) + MediaProfile.UUID_DIRS * mp.getDirOverhead();
+    }
+    
+    // the open parts are measured again and the allocator gets the new capacity
+    public synchronized void setMediaProfile(MediaProfile mp) {
+        media = mp;
+        PartAllocator a = new PartAllocator((mp == null) ? MAX_SIZE1 : mp.getUsable());
+        a.setPolicy(allocator.getPolicy());
+        for (PartInfo pi : parts.values()) {
+            pi.setSize(treeCost(getPartDataDir(pi.getNum()).toPath()));
+            a.add(pi);
+        }
+        allocator = a;
+    }
+    
+    public MediaProfile getMediaProfile() {
+        return media;
+    }
+    
     protected PartInfo readPartInfo(File dir) {
         PartInfo ret = new PartInfo(dir);
         
@@ -114,12 +496,24 @@ public abstract class AbstractStoreFileManager implements StoreFileManager {
             File f = new File(dir.getParent(), dir.getName() + PART_INFO);
             int num = Integer.parseInt(dir.getName().substring(1));
             Path fpath = Paths.get(f.getAbsolutePath());
+            boolean sized = false;
             if (f.exists()) {
                 String fstr = new String(Files.readAllBytes(fpath), "UTF-8");
-                ret = PartInfo.fromMap((Map)ObjectBuilder.fromJSON(fstr), dir);
+                Map m = (Map)ObjectBuilder.fromJSON(fstr);
+                ret = PartInfo.fromMap(m, dir);
+                sized = m.containsKey("size");
             }
             ret.setNum(num);
-            ret.setSize(FileInfo.calculatePathSize(dir.toPath()));
+            PartJournal journal = new PartJournal(dir);
+            if (journal.replay(ret, dir)) {
+                sized = true;
+            }
+            // the size of the .info and the journal is valid if the part was not touched after it was written,
+            // see touch, a closed part is not changed
+            if (!sized || (ret.getBackUpDate() == null && Math.max(f.lastModified(), journal.getFile().lastModified()) <= dir.lastModified())) {
+                ret.setSize(treeCost(dir.toPath()));
+                System.out.println("part size>" + dir.getAbsolutePath() + " " + ret.getSize());
+            }
         } catch (Exception ex) {
             Logger.getLogger(AbstractStoreFileManager.class.getName()).log(Level.SEVERE, null, ex);
             return null;
@@ -137,14 +531,37 @@ public abstract class AbstractStoreFileManager implements StoreFileManager {
         return fileRelPath;
     }
     
+    protected synchronized boolean isPartOpen(int num) {
+        return parts.containsKey(num);
+    }
+    
+    private Object getNameLock(String name) {
+        return nameLocks[(name.hashCode() & 0x7fffffff) % nameLocks.length];
+    }
+    
     public static final String TAG_OVERRIDE = "#override";
     @Override
     public Errors addFileIn(FileInfo file) {
+        return addFileIn(file, true);
+    }
+    
+    // stage - a new item may wait in the staging, Errors.STAGED is returned then
+    private Errors addFileIn(FileInfo file, boolean stage) {
+        synchronized (getNameLock(file.getName())) {
+            return addFileInLocked(file, stage);
+        }
+    }
+    
+    private Errors addFileInLocked(FileInfo file, boolean stage) {
+        if (isStaged(file.getName())) {
+            // the staged one is stored first
+            drainStaged();
+        }
         String q = "" + SolrSelect.toQueryNamedParamEscape(SolrIndexer.DOC_WPATH, this.getStoreIdName()) + " AND " + SolrSelect.toQueryNamedParamEscape(SolrIndexer.DOC_FULL_TITLE,file.getName());
         ArrayList<SolrDocument> files = new ArrayList<>();
         try {
             SolrSelect.findSolrDocument(new SolrSelect.CollectorSolrDocumentProcessor(files), indexer.getSolrClient(), q, 
-                    new String[] { "id", SolrIndexer.DOC_TITLE, SolrIndexer.DOC_FULL_TITLE, SolrIndexer.DOC_WPATH,  SolrIndexer.DOC_PART, SolrIndexer.DOC_UUID, SolrIndexer.DOC_PATH, SolrIndexer.DOC_TAGS, SolrIndexer.FILE_LASTMODIFIEDTIME}, 0, 1000);
+                    new String[] { "id", SolrIndexer.DOC_TITLE, SolrIndexer.DOC_FULL_TITLE, SolrIndexer.DOC_WPATH,  SolrIndexer.DOC_PART, SolrIndexer.DOC_UUID, SolrIndexer.DOC_PATH, SolrIndexer.DOC_TAGS, SolrIndexer.FILE_LASTMODIFIEDTIME, SolrIndexer.DOC_CONTENT_HASH, SolrIndexer.DOC_CHUNKS, SolrIndexer.DOC_PACKED, SolrIndexer.DOC_COMPRESSED}, 0, 1000);
         } catch (SolrServerException | IOException ex) {
             Logger.getLogger(AbstractStoreFileManager.class.getName()).log(Level.SEVERE, null, ex);
             return Errors.SOLR;
@@ -158,7 +575,7 @@ public abstract class AbstractStoreFileManager implements StoreFileManager {
                 if (sd.containsKey(SolrIndexer.DOC_PART)) {
                     String partName = sd.getFieldValue(SolrIndexer.DOC_PART).toString();
                     int num = Integer.parseInt(partName.substring(1));
-                    if (parts.containsKey(num)) {
+                    if (isPartOpen(num)) {
                         filesNotBackUp.add(sd);
                     }
                 }
@@ -167,23 +584,36 @@ public abstract class AbstractStoreFileManager implements StoreFileManager {
         }
         
         if (fileExists) {
-            if (file.getPath().toFile().isDirectory()) {
+            if (file.isDirectory()) {
                 if (file.getTags().contains(TAG_OVERRIDE)) {
                     file.getTags().remove(TAG_OVERRIDE);
+                    if (!fileBackUp && canOverrideDir(file, filesNotBackUp.get(0))) {
+                        // the incoming tree at most, the same entries are given back
+                        long incoming = treeCost(file.getPath());
+                        PartInfo pi = reserveIn(filesNotBackUp.get(0), incoming);
+                        if (pi != null) {
+                            return overrideDir(file, filesNotBackUp.get(0), pi, incoming);
+                        }
+                    }
                     if (!fileBackUp) { 
                         //take that is not back up
                         //move content to in dir
+                        String path = filesNotBackUp.get(0).get(SolrIndexer.DOC_PATH).toString();
+                        File f1 = this.dir.toPath().resolve(Paths.get(path)).toFile();;
                         Path tempDir;
                         try {
+                            // a directory is not split, the merged one may not fit a part: the old copy stays
+                            if (FileMetadata.treeSize(f1.toPath()) + file.getFileSize() >= MAX_SIZE1) {
+                                return Errors.TOO_BIG;
+                            }
                             tempDir = Files.createTempDirectory(this.tempdir.toPath(), "tmp");
                         } catch (IOException ex) {
                             Logger.getLogger(AbstractStoreFileManager.class.getName()).log(Level.SEVERE, null, ex);
                             return Errors.FATAL;
                         }
-                        String path = filesNotBackUp.get(0).get(SolrIndexer.DOC_PATH).toString();
-                        File f1 = this.dir.toPath().resolve(Paths.get(path)).toFile();;
                         File f2 = tempDir.resolve(file.getName()).toFile();
                         f1.renameTo(f2);
+                        removeFromManifest(path);
                         // get old tags
                         file.getTags().addAll( filesNotBackUp.get(0).getFieldValues(SolrIndexer.DOC_TAGS).stream().map(e -> { return e.toString(); }).collect(java.util.stream.Collectors.toList()) );
                         //delete index
@@ -204,8 +634,10 @@ public abstract class AbstractStoreFileManager implements StoreFileManager {
                         
                         //override content
                         try {
-                            IOUtil.moveDirOverwrite(file.getPath().toFile(), f2, false);
-                            IOUtil.moveDirOverwrite(f2, file.getPath().toFile(), true);
+                            IOUtil.moveDirOverwrite(file.getPath().toFile(), f2, false, ioGovernor);
+                            IOUtil.moveDirOverwrite(f2, file.getPath().toFile(), true, ioGovernor);
+                            // the content is merged with the old one
+                            file.refreshMeta();
 //                            Files.move(file.getPath(), f2.toPath(), StandardCopyOption.REPLACE_EXISTING);
 //                            Files.move(f2.toPath(), file.getPath(), StandardCopyOption.REPLACE_EXISTING);
                         } catch (IOException ex) {
@@ -220,12 +652,27 @@ public abstract class AbstractStoreFileManager implements StoreFileManager {
             } else {
                 if (file.getTags().contains(TAG_OVERRIDE)) {
                     file.getTags().remove(TAG_OVERRIDE);
+                    boolean versioned = false;
                     if (!fileBackUp) { //take that is not back up
                         // remove old file
-                        boolean isDel = new File(dir, filesNotBackUp.get(0).get(SolrIndexer.DOC_PATH).toString()).delete();
+                        String oldPath = filesNotBackUp.get(0).get(SolrIndexer.DOC_PATH).toString();
+                        versioned = keepVersion(file, new File(dir, oldPath), filesNotBackUp.get(0));
+                        boolean isDel;
+                        if (filesNotBackUp.get(0).containsKey(SolrIndexer.DOC_CHUNKS)) {
+                            isDel = deleteChunked(oldPath);
+                        } else if (filesNotBackUp.get(0).containsKey(SolrIndexer.DOC_PACKED)) {
+                            isDel = deletePacked(oldPath);
+                        } else {
+                            isDel = new File(dir, oldPath).delete();
+                        }
                         if (!isDel) {
                             return Errors.FATAL;
                         }
+                        removeFromManifest(oldPath);
+                        Object oldHash = filesNotBackUp.get(0).getFieldValue(SolrIndexer.DOC_CONTENT_HASH);
+                        if (oldHash != null) {
+                            hashIndex.remove(oldHash.toString(), oldPath);
+                        }
                         // get old tags
                         file.getTags().addAll( filesNotBackUp.get(0).getFieldValues(SolrIndexer.DOC_TAGS).stream().map(e -> { return e.toString(); }).collect(java.util.stream.Collectors.toList()) );
                         try {
@@ -234,41 +681,716 @@ public abstract class AbstractStoreFileManager implements StoreFileManager {
                             indexer.getSolrClient().commit();
                         } catch (SolrServerException | IOException ex) {
                             Logger.getLogger(AbstractStoreFileManager.class.getName()).log(Level.SEVERE, null, ex);
+                            if (versioned) {
+                                storedVersion(file, Errors.FATAL);
+                            }
                             return Errors.FATAL;
                         }
                     }
-                    return addFileInNew(file);
+                    Errors res = addFileInNew(file);
+                    if (versioned) {
+                        storedVersion(file, res);
+                    }
+                    return res;
                 } else {
                     return Errors.EXISTS;
                 }
             }
         } else {
-            return addFileInNew(file);
+            return stage ? addStagedOrNew(file) : addFileInNew(file);
         }
         //return Errors.EXISTS;
     }
+    
+    // a new item waits in the staging if it's on, see drainStaged
+    // STAGED - it's still in in/, the outcome goes to stagedResults when it is stored
+    private Errors addStagedOrNew(FileInfo file) {
+        if (stageLimit <= 0 || file.getFileSize() >= MAX_SIZE1) {
+            return addFileInNew(file);
+        }
+        boolean full;
+        synchronized (stageLock) {
+            staged.add(file);
+            stagedNames.add(file.getName());
+            stagedBytes += file.getFileSize();
+            full = stagedBytes >= stageLimit;
+        }
+        if (full) {
+            drainStaged();
+        }
+        return Errors.STAGED;
+    }
+    
+    private boolean isStaged(String name) {
+        synchronized (stageLock) {
+            return stagedNames.contains(name);
+        }
+    }
+    
+    // the biggest first: the best fit puts them into the fullest parts they fit, the small ones top the parts up
+    // the lock is held till the end, so isStaged waits for the item to be stored
+    private void drainStaged() {
+        synchronized (stageLock) {
+            if (staged.isEmpty()) {
+                return;
+            }
+            ArrayList<FileInfo> items = staged;
+            staged = new ArrayList<>();
+            stagedBytes = 0;
+            items.sort(Comparator.comparingLong(FileInfo::getFileSize).reversed());
+            System.out.println("staged>" + getStoreIdName() + " " + items.size());
+            for (FileInfo fi : items) {
+                // the stored item gets the path in the part
+                Path source = fi.getPath();
+                Errors err;
+                try {
+                    err = addFileInNew(fi);
+                } catch (RuntimeException ex) {
+                    Logger.getLogger(AbstractStoreFileManager.class.getName()).log(Level.SEVERE, null, ex);
+                    err = Errors.FATAL;
+                }
+                BiConsumer<Path, Errors> h = stagedResults;
+                if (h != null) {
+                    h.accept(source, err);
+                } else if (err != null) {
+                    Logger.getLogger(AbstractStoreFileManager.class.getName()).log(Level.SEVERE, "Staged " + source + ": " + err);
+                }
+            }
+            stagedNames.clear();
+        }
+    }
+    // the tags of every child doc are the tags of the directory, so only the same tags keep them valid
+    private boolean canOverrideDir(FileInfo file, SolrDocument old) {
+        Collection<Object> oldTags = old.getFieldValues(SolrIndexer.DOC_TAGS);
+        HashSet<String> tags = new HashSet<>();
+        if (oldTags != null) {
+            oldTags.forEach(t -> tags.add(t.toString()));
+        }
+        return tags.containsAll(file.getTags()) && new File(dir, old.get(SolrIndexer.DOC_PATH).toString()).isDirectory();
+    }
+    
+    private static class DirDiff {
+        private final ArrayList<Path> changed = new ArrayList<>();
+        private final ArrayList<Path> removedFiles = new ArrayList<>();
+        private final ArrayList<Path> removedDirs = new ArrayList<>();
+        private long sizeDelta;
+        private int same;
+    }
+    
+    // the size is reserved in the open part of the stored directory, null - the part is closed or has no room,
+    // the directory is merged and stored as a new one then
+    private synchronized PartInfo reserveIn(SolrDocument old, long size) {
+        String part = old.getFieldValue(SolrIndexer.DOC_PART).toString();
+        PartInfo pi = parts.get(Integer.parseInt(part.substring(1)));
+        if (pi == null || !allocator.fits(pi, size)) {
+            return null;
+        }
+        touch(pi);
+        allocator.resize(pi, size);
+        return pi;
+    }
+    
+    // #override of a stored directory in place: an incoming entry is moved only if it differs by size, mtime
+    // or content, the same ones are dropped, the stored entries missing in the incoming tree are kept as before
+    // Solr gets the changed children, the directory doc and one delete for the replaced subtrees,
+    // if it fails on the way the entries moved and removed so far are indexed too, the rest stays in in/
+    private Errors overrideDir(FileInfo file, SolrDocument old, PartInfo pi, long reserved) {
+        String oldPath = old.get(SolrIndexer.DOC_PATH).toString();
+        Path stored = dir.toPath().resolve(oldPath);
+        String part = old.getFieldValue(SolrIndexer.DOC_PART).toString();
+        int num = pi.getNum();
+        DirDiff diff = new DirDiff();
+        Errors res = null;
+        try {
+            diffDir(file.getPath(), stored, diff);
+            Files.deleteIfExists(file.getPath());
+        } catch (IOException ex) {
+            Logger.getLogger(AbstractStoreFileManager.class.getName()).log(Level.SEVERE, "Can't override " + stored, ex);
+            res = Errors.FATAL;
+        } finally {
+            synchronized (this) {
+                allocator.resize(pi, diff.sizeDelta - reserved);
+                journalSize(pi);
+            }
+        }
+        System.out.println("override dir>" + stored + " changed " + diff.changed.size() + ", removed " + (diff.removedFiles.size() + diff.removedDirs.size()) + ", same " + diff.same);
+        if (diff.changed.isEmpty() && diff.removedFiles.isEmpty() && diff.removedDirs.isEmpty()) {
+            return res;
+        }
+        PartManifest pm = getManifest(num);
+        ArrayList<String> removedFiles = new ArrayList<>();
+        ArrayList<String> removedDirs = new ArrayList<>();
+        for (Path p : diff.removedFiles) {
+            removedFiles.add(getRelative(dir, p.toFile()));
+        }
+        for (Path p : diff.removedDirs) {
+            removedDirs.add(getRelative(dir, p.toFile()));
+        }
+        ArrayList<String> removed = new ArrayList<>(removedFiles);
+        removed.addAll(removedDirs);
+        for (String p : removed) {
+            removeFromManifest(p);
+        }
+        String wpath = getStoreIdName();
+        String uuid = old.getFieldValue(SolrIndexer.DOC_UUID).toString();
+        // the same as the tags of the children left as they are
+        HashSet<String> merged = new HashSet<>(file.getTags());
+        Collection<Object> oldTags = old.getFieldValues(SolrIndexer.DOC_TAGS);
+        if (oldTags != null) {
+            oldTags.forEach(t -> merged.add(t.toString()));
+        }
+        HashMap<String, Object> tags = new HashMap();
+        tags.put(SolrIndexer.DOC_TAGS, new ArrayList<String>(merged));
+        Consumer<Throwable> result = t -> {
+            if (t != null) {
+                Logger.getLogger(AbstractStoreFileManager.class.getName()).log(Level.SEVERE, "Not indexed in " + stored, t);
+            }
+        };
+        ArrayList<SolrIndexer.Doc> docs = new ArrayList<>();
+        for (Path p : diff.changed) {
+            try {
+                pm.add(pm.makeEntries(p, null, fileTransfer));
+            } catch (IOException ex) {
+                Logger.getLogger(AbstractStoreFileManager.class.getName()).log(Level.SEVERE, "Can't add to " + pm.getFile(), ex);
+            }
+            docs.add(new SolrIndexer.Doc(wpath, part, uuid, getRelative(dir, p.toFile()), p.toFile(), null, null, new HashMap<>(tags), result));
+        }
+        try {
+            docs.add(new SolrIndexer.Doc(wpath, part, uuid, oldPath, stored.toFile(), FileMetadata.read(stored), file.getName(), tags, result).setShallow(true));
+        } catch (IOException ex) {
+            Logger.getLogger(AbstractStoreFileManager.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        indexer.deleteAsync(wpath, removedFiles, removedDirs);
+        indexer.addDocsAsync(docs);
+        return res;
+    }
+    
+    private void diffDir(Path in, Path stored, DirDiff diff) throws IOException {
+        ArrayList<Path> children = new ArrayList<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(in)) {
+            ds.forEach(children::add);
+        } catch (DirectoryIteratorException ex) {
+            throw ex.getCause();
+        }
+        for (Path c : children) {
+            Path s = stored.resolve(c.getFileName().toString());
+            BasicFileAttributes ca = Files.readAttributes(c, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            boolean exists = Files.exists(s, LinkOption.NOFOLLOW_LINKS);
+            boolean storedDir = exists && Files.isDirectory(s, LinkOption.NOFOLLOW_LINKS);
+            boolean replaced = false;
+            if (ca.isDirectory() && storedDir) {
+                diffDir(c, s, diff);
+                Files.deleteIfExists(c);
+                continue;
+            }
+            if (exists && !ca.isDirectory() && !storedDir) {
+                BasicFileAttributes sa = Files.readAttributes(s, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                if (ca.size() == sa.size() && (ca.lastModifiedTime().equals(sa.lastModifiedTime())
+                        || Arrays.equals(fileTransfer.digest(c), fileTransfer.digest(s)))) {
+                    Files.delete(c);
+                    diff.same++;
+                    continue;
+                }
+                diff.sizeDelta -= fileCost(sa.size());
+                Files.delete(s);
+                replaced = true;
+            } else if (exists) {
+                // a file in place of a directory or back
+                if (storedDir) {
+                    diff.sizeDelta -= treeCost(s);
+                    diff.removedDirs.add(s);
+                    IOUtil.deleteTree(s);
+                } else {
+                    diff.sizeDelta -= fileCost(Files.size(s));
+                    diff.removedFiles.add(s);
+                    Files.delete(s);
+                }
+            }
+            if (ioGovernor != null) {
+                ioGovernor.acquireOps(1);
+            }
+            if (!c.toFile().renameTo(s.toFile())) {
+                try {
+                    fileTransfer.move(c, s);
+                } catch (IOException ex) {
+                    if (replaced) {
+                        // the old one is deleted already, its doc is to be deleted too
+                        diff.removedFiles.add(s);
+                    }
+                    throw ex;
+                }
+            }
+            durability.dir(s.getParent());
+            diff.sizeDelta += ca.isDirectory() ? treeCost(s) : fileCost(ca.size());
+            diff.changed.add(s);
+        }
+    }
+    
+    // the old copy replaced by #override, before it is deleted
+    // true - the version is kept and storedVersion is called when the new copy is stored
+    protected boolean keepVersion(FileInfo file, File old, SolrDocument oldDoc) {
+        return false;
+    }
+    
+    // res - null if the new copy is stored
+    protected void storedVersion(FileInfo file, Errors res) {
+    }
+    
+    protected File getTempDir() {
+        return tempdir;
+    }
+    
     private Errors addFileInNew(FileInfo file) {
-        PartInfo pi = selectPartInfoFor(file);
-        pi.incrSize(file.getFileSize());
+        if (file.getFileSize() >= MAX_SIZE1) {
+            // only a regular file is stored in segments
+            return canSplit(file) ? addFileInChunks(file) : Errors.TOO_BIG;
+        }
+        FileMetadata meta = file.getMeta();
+        boolean packed = meta != null && meta.isRegularFile() && meta.size() < packThreshold;
+        // a packed file is the bytes of the segment
+        long cost = packed ? file.getFileSize() : itemCost(file);
+        PartInfo pi = reserve(cost);
 
         Path toDirPath = Paths.get(getPartDataDir(pi.getNum()).getAbsolutePath());
         Path toFile = toDirPath.resolve(makeRelativePath(file));
         File toFileFile = toFile.toFile();
+        if (packed) {
+            return addFilePacked(file, pi, toFile, cost);
+        }
         toFileFile.getParentFile().mkdirs();
-        if (file.getPath().toFile().renameTo(toFileFile)) {
-            file.setFile(toFileFile);
+        if (ioGovernor != null) {
+            ioGovernor.acquireOps(1);
+        }
+        boolean stored = dedup && storeDuplicate(file, toFile);
+        if (!stored && compress && meta != null && meta.isRegularFile() && Mime.isTextDocument(Mime.getMimeTypeFile(file.getName()))) {
+            Path gz = toFile.resolveSibling(toFile.getFileName() + COMPRESSED_SUFFIX);
+            stored = storeCompressed(file, gz);
+            if (stored) {
+                // the part counts the stored bytes
+                release(pi, cost - storedCost(gz.toFile().length()));
+                toFile = gz;
+                toFileFile = gz.toFile();
+            }
+        }
+        if (!stored && !file.getPath().toFile().renameTo(toFileFile)) {
+            // in/ and out/ may be on different file systems
+            try {
+                // the new uuid directories, the copy syncs its own entry before the source is deleted
+                beforeDirs(toFile.getParent());
+                byte[] copied = fileTransfer.move(file.getPath(), toFile);
+                if (copied != null && file.getContentHash() == null) {
+                    file.setContentHash(FileTransfer.toHex(copied));
+                }
+            } catch (IOException ex) {
+                Logger.getLogger(AbstractStoreFileManager.class.getName()).log(Level.SEVERE, "Can't move " + file.getPath() + " to " + toFile, ex);
+                release(pi, cost);
+                return Errors.FATAL;
+            }
+        }
+        if (toFileFile.isDirectory()) {
+            syncedDirs(toFile);
+        } else {
+            synced(toFile);
+        }
+        addToManifest(pi, file, toFile);
+        if (dedup && file.getContentHash() != null && !file.isCompressed()) {
+            hashIndex.add(file.getContentHash(), getRelative(dir, toFileFile));
+        }
+        file.setFile(toFileFile);
+        return addedNew(file, pi);
+    }
+    
+    private Errors addedNew(FileInfo file, PartInfo pi) {
+        if (batchSize > 1) {
+            // the journal line per file, the sync, the log flush and the index per batch
             storeFileInfo(pi, file);
-            //(String wpath, String path, File fl, String title, Consumer<Throwable> result) {
+            addedFile(file, pi, false);
+            addToBatch(file, pi);
+            return null;
+        }
+        storeFileInfo(pi, file);
+        //(String wpath, String path, File fl, String title, Consumer<Throwable> result) {
 
-            addedFile(file, pi);
-            index(file, pi);
+        addedFile(file, pi);
+        index(file, pi);
+        return null;
+    }
+    
+    // the source is deflated at the fastest level into gz, the checksum of the content is calculated on the way
+    // false - the source is kept as is, it's not compressible enough or the compression failed
+    private boolean storeCompressed(FileInfo file, Path gz) {
+        long size = file.getFileSize();
+        MessageDigest md = FileTransfer.newDigest();
+        try {
+            try (InputStream in = Files.newInputStream(file.getPath());
+                 OutputStream out = new GZIPOutputStream(Files.newOutputStream(gz, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE), 64 * 1024) {
+                     {
+                         def.setLevel(Deflater.BEST_SPEED);
+                     }
+                 }) {
+                byte[] buf = new byte[64 * 1024];
+                int r;
+                while ((r = in.read(buf)) >= 0) {
+                    IOGovernor g = ioGovernor;
+                    if (g != null) {
+                        g.acquireBytes(r);
+                    }
+                    md.update(buf, 0, r);
+                    out.write(buf, 0, r);
+                }
+            }
+            if (Files.size(gz) > size - size / 10) {
+                Files.delete(gz);
+                return false;
+            }
+            String hash = FileTransfer.toHex(md.digest());
+            if (file.getContentHash() != null && !file.getContentHash().equals(hash)) {
+                throw new IOException("Checksum mismatch: " + file.getPath());
+            }
+            Files.setLastModifiedTime(gz, file.getMeta().lastModifiedTime());
+            syncedBefore(gz);
+            Files.delete(file.getPath());
+            file.setContentHash(hash);
+            file.setCompressed(true, size);
+            return true;
+        } catch (IOException ex) {
+            Logger.getLogger(AbstractStoreFileManager.class.getName()).log(Level.WARNING, "Stored uncompressed: " + file.getPath(), ex);
+            try {
+                Files.deleteIfExists(gz);
+            } catch (IOException ex1) {
+                Logger.getLogger(AbstractStoreFileManager.class.getName()).log(Level.SEVERE, null, ex1);
+            }
+            return false;
+        }
+    }
+    
+    private static ContentStreamBase makeCompressedStream(Path gz, String name, long size) {
+        ContentStreamBase ret = new ContentStreamBase() {
+            @Override
+            public InputStream getStream() throws IOException {
+                return new GZIPInputStream(Files.newInputStream(gz), 64 * 1024);
+            }
+        };
+        ret.setName(name);
+        ret.setSize(size);
+        ret.setSourceInfo(name);
+        return ret;
+    }
+    
+    // the name of the content
+    private static String getStoredName(FileInfo file) {
+        String name = file.getName();
+        if (file.isCompressed() && name.endsWith(COMPRESSED_SUFFIX)) {
+            return name.substring(0, name.length() - COMPRESSED_SUFFIX.length());
+        }
+        return name;
+    }
+    
+    // one write to the segment and one index line instead of a directory chain and a file
+    private Errors addFilePacked(FileInfo file, PartInfo pi, Path toFile, long cost) {
+        PackedFiles pf = getPacked(pi.getNum());
+        if (ioGovernor != null) {
+            ioGovernor.acquireOps(1);
+            ioGovernor.acquireBytes(file.getFileSize());
+        }
+        try {
+            PackedFiles.Entry e = pf.append(file.getPath(), pf.toRelative(toFile), file.getMeta().lastModifiedTime().toMillis());
+            file.setContentHash(e.getHash());
+            syncedBefore(pf.getSegment().toPath());
+            durability.before(pf.getIndexFile().toPath());
+            Files.delete(file.getPath());
+        } catch (IOException ex) {
+            Logger.getLogger(AbstractStoreFileManager.class.getName()).log(Level.SEVERE, "Can't pack " + file.getPath(), ex);
+            release(pi, cost);
+            return Errors.FATAL;
+        }
+        file.setFile(toFile.toFile());
+        file.setPacked(true);
+        return addedNew(file, pi);
+    }
+    
+    // path - relative to the store dir: pN/...
+    private boolean deletePacked(String path) {
+        Path p = Paths.get(path);
+        try {
+            return getPacked(Integer.parseInt(p.getName(0).toString().substring(1))).remove(p.subpath(1, p.getNameCount()).toString().replace(File.separatorChar, '/'));
+        } catch (IOException | RuntimeException ex) {
+            Logger.getLogger(AbstractStoreFileManager.class.getName()).log(Level.SEVERE, null, ex);
+            return false;
+        }
+    }
+    
+    public synchronized PackedFiles getPacked(int num) {
+        PackedFiles ret = packs.get(num);
+        if (ret == null) {
+            ret = new PackedFiles(getPartDataDir(num));
+            packs.put(num, ret);
+        }
+        return ret;
+    }
+    
+    private PackedFiles getPacked(FileInfo file) {
+        Path p = dir.toPath().toAbsolutePath().relativize(file.getPath().toAbsolutePath());
+        return getPacked(Integer.parseInt(p.getName(0).toString().substring(1)));
+    }
+    
+    private PackedFiles.Entry getPackedEntry(PackedFiles pf, FileInfo file) throws IOException {
+        PackedFiles.Entry e = pf.get(pf.toRelative(file.getPath()));
+        if (e == null) {
+            throw new IOException("Not packed " + file.getPath());
+        }
+        return e;
+    }
+    
+    @Override
+    public boolean canSplit(FileInfo fi) {
+        FileMetadata meta = fi.getMeta();
+        return meta != null && meta.isRegularFile() && meta.size() < MAX_SIZE;
+    }
+    
+    // a file bigger than a part: the segments are copied with transferTo into the parts with room,
+    // the source is deleted when all of them are stored, see ChunkedFile
+    // the file is indexed once, the segments are read one after another
+    private Errors addFileInChunks(FileInfo file) {
+        FileMetadata meta = file.getMeta();
+        long size = meta.size();
+        Path rel = makeRelativePath(file);
+        MessageDigest whole = FileTransfer.newDigest();
+        ArrayList<ChunkedFile.Chunk> chunks = new ArrayList<>();
+        ArrayList<PartInfo> used = new ArrayList<>();
+        ArrayList<Path> written = new ArrayList<>();
+        try {
+            long pos = 0;
+            while (pos < size) {
+                long n = Math.min(ChunkedFile.CHUNK_SIZE, size - pos);
+                PartInfo pi = reserve(storedCost(n));
+                used.add(pi);
+                Path to = getPartDataDir(pi.getNum()).toPath().resolve(rel.resolveSibling(ChunkedFile.getSegmentName(file.getName(), chunks.size())));
+                to.getParent().toFile().mkdirs();
+                byte[] hash = fileTransfer.copyRange(file.getPath(), pos, n, to, whole);
+                written.add(to);
+                chunks.add(new ChunkedFile.Chunk(getRelative(dir, to.toFile()).replace(File.separatorChar, '/'), n, FileTransfer.toHex(hash)));
+                pos += n;
+            }
+            String hash = FileTransfer.toHex(whole.digest());
+            if (file.getContentHash() != null && !file.getContentHash().equals(hash)) {
+                throw new IOException("Checksum mismatch: " + file.getPath());
+            }
+            file.setContentHash(hash);
+            Path manifest = getPartDataDir(used.get(0).getNum()).toPath().resolve(rel.resolveSibling(ChunkedFile.getManifestName(file.getName())));
+            written.add(manifest);
+            new ChunkedFile(file.getName(), size, meta.lastModifiedTime().toMillis(), hash, chunks).write(manifest.toFile());
+            for (int i = 0; i < chunks.size(); i++) {
+                PartManifest pm = getManifest(used.get(i).getNum());
+                pm.add(pm.makeEntries(written.get(i), chunks.get(i).getHash(), fileTransfer));
+            }
+            PartManifest pm = getManifest(used.get(0).getNum());
+            pm.add(pm.makeEntries(manifest, null, fileTransfer));
+            // the segments are synced by the copy
+            for (Path p : written) {
+                beforeDirs(p.toAbsolutePath().getParent());
+            }
+            durability.before(manifest);
+            Files.delete(file.getPath());
+            file.setFile(manifest.toFile());
+            file.setChunked(true);
+            System.out.println("chunked>" + file.getPath() + " " + chunks.size());
+            return addedNew(file, used.get(0));
+        } catch (IOException ex) {
+            Logger.getLogger(AbstractStoreFileManager.class.getName()).log(Level.SEVERE, "Can't store in segments " + file.getPath(), ex);
+            for (Path p : written) {
+                try {
+                    Files.deleteIfExists(p);
+                } catch (IOException ex1) {
+                    Logger.getLogger(AbstractStoreFileManager.class.getName()).log(Level.SEVERE, null, ex1);
+                }
+            }
+            synchronized (this) {
+                for (int i = 0; i < used.size(); i++) {
+                    release(used.get(i), storedCost(Math.min(ChunkedFile.CHUNK_SIZE, size - i * ChunkedFile.CHUNK_SIZE)));
+                }
+            }
+            return Errors.FATAL;
+        }
+    }
+    
+    // path - the manifest relative to the store dir
+    private boolean deleteChunked(String path) {
+        File manifest = new File(dir, path);
+        try {
+            ChunkedFile cf = ChunkedFile.read(manifest);
+            for (ChunkedFile.Chunk c : cf.getChunks()) {
+                removeFromManifest(c.getPath());
+            }
+            return cf.delete(dir, manifest);
+        } catch (IOException ex) {
+            Logger.getLogger(AbstractStoreFileManager.class.getName()).log(Level.SEVERE, null, ex);
+            return false;
+        }
+    }
+    
+    // the whole content of a stored file, the segments of a file stored in segments
+    public InputStream openStored(FileInfo file) throws IOException {
+        if (file.isChunked()) {
+            return ChunkedFile.read(file.getPath().toFile()).openStream(dir);
+        }
+        if (file.isPacked()) {
+            PackedFiles pf = getPacked(file);
+            return pf.open(getPackedEntry(pf, file));
+        }
+        if (file.isCompressed()) {
+            return new GZIPInputStream(Files.newInputStream(file.getPath()), 64 * 1024);
+        }
+        return Files.newInputStream(file.getPath());
+    }
+    
+    // the file or the files of the directory, a directory is hashed in parallel
+    private void addToManifest(PartInfo pi, FileInfo file, Path stored) {
+        PartManifest pm = getManifest(pi.getNum());
+        try {
+            // the content hash of a compressed file is not the one of the stored file
+            List<PartManifest.Entry> entries = pm.makeEntries(stored, file.isCompressed() ? null : file.getContentHash(), fileTransfer);
+            if (entries.size() == 1 && file.getContentHash() == null && !file.isDirectory()) {
+                file.setContentHash(entries.get(0).getHash());
+            }
+            pm.add(entries);
+        } catch (IOException ex) {
+            Logger.getLogger(AbstractStoreFileManager.class.getName()).log(Level.SEVERE, "Can't add to " + pm.getFile(), ex);
+        }
+    }
+    
+    // path - relative to the store dir: pN/...
+    private void removeFromManifest(String path) {
+        Path p = Paths.get(path);
+        String part = p.getName(0).toString();
+        if (p.getNameCount() > 1 && nameP.matcher(part).matches()) {
+            try {
+                getManifest(Integer.parseInt(part.substring(1))).remove(p.subpath(1, p.getNameCount()).toString().replace(File.separatorChar, '/'));
+            } catch (IOException ex) {
+                Logger.getLogger(AbstractStoreFileManager.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+    
+    public synchronized PartManifest getManifest(int num) {
+        PartManifest ret = manifests.get(num);
+        if (ret == null) {
+            ret = new PartManifest(getPartDataDir(num));
+            manifests.put(num, ret);
+        }
+        return ret;
+    }
+    
+    // sorts the manifest of the part, the parts stored before the manifests get a new one
+    public PartManifest writeManifest(File partFile) throws IOException {
+        PartManifest pm = getManifest(Integer.parseInt(partFile.getName().substring(1)));
+        if (pm.getFile().exists()) {
+            pm.compact();
         } else {
-            // TODO error
+            pm.build(fileTransfer);
+        }
+        return pm;
+    }
+    
+    public List<String> verify(File partFile, boolean content) throws IOException {
+        int num = Integer.parseInt(partFile.getName().substring(1));
+        PackedFiles pf = getPacked(num);
+        // the segment is listed when the part is backed up
+        Set<String> notListed = isPartOpen(num) ? Collections.singleton(PackedFiles.SEGMENT) : Collections.emptySet();
+        List<String> ret = getManifest(num).verify(fileTransfer, content, notListed);
+        if (pf.getSegment().exists()) {
+            if (content) {
+                ret.addAll(pf.verify());
+            }
+        }
+        return ret;
+    }
+    
+    // if the content is already stored, the new name is a hard link to it and the source is deleted
+    // the file system counts the links, so any of the names may be removed later
+    // the part size still counts the file: a back up copies the content of every name
+    private boolean storeDuplicate(FileInfo file, Path toFile) {
+        FileMetadata meta = file.getMeta();
+        if (meta == null || !meta.isRegularFile()) {
+            return false;
+        }
+        boolean linked = false;
+        try {
+            String hash = file.getContentHash();
+            if (hash == null) {
+                hash = FileTransfer.toHex(fileTransfer.digest(file.getPath()));
+                file.setContentHash(hash);
+            }
+            String stored = hashIndex.find(hash, rel -> {
+                File f = new File(dir, rel);
+                return f.isFile() && f.length() == meta.size();
+            });
+            if (stored == null) {
+                return false;
+            }
+            Files.createLink(toFile, new File(dir, stored).toPath());
+            linked = true;
+            // the content may be in a BATCHED window yet
+            syncedBefore(toFile);
+            Files.delete(file.getPath());
+            System.out.println("duplicate>" + file.getPath() + " = " + stored);
+            return true;
+        } catch (IOException | UnsupportedOperationException ex) {
+            Logger.getLogger(AbstractStoreFileManager.class.getName()).log(Level.WARNING, "Stored as a new content: " + file.getPath(), ex);
+            if (linked) {
+                try {
+                    Files.deleteIfExists(toFile);
+                } catch (IOException ex1) {
+                    Logger.getLogger(AbstractStoreFileManager.class.getName()).log(Level.SEVERE, null, ex1);
+                }
+            }
+            return false;
+        }
+    }
+    
+    // an upload: the content is written to the _temp dir next to the store, so the move into the part
+    // is a rename and every byte is written once, the checksum is calculated on the way
+    // file - the tags and the date off, name - the file name to store
+    public Errors addStream(String name, FileInfo file, InputStream in) throws IOException {
+        Path upDir = Files.createTempDirectory(tempdir.toPath(), "up");
+        Path to = upDir.resolve(name);
+        try {
+            MessageDigest md = FileTransfer.newDigest();
+            long size = 0;
+            try (OutputStream out = Files.newOutputStream(to, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                byte[] buf = new byte[1024 * 1024];
+                int r;
+                while ((r = in.read(buf)) >= 0) {
+                    size += r;
+                    if (size >= MAX_SIZE) {
+                        return Errors.TOO_BIG;
+                    }
+                    IOGovernor g = ioGovernor;
+                    if (g != null) {
+                        g.acquireBytes(r);
+                    }
+                    md.update(buf, 0, r);
+                    out.write(buf, 0, r);
+                }
+            }
+            file.setFile(to.toFile());
+            file.setContentHash(FileTransfer.toHex(md.digest()));
+            // not staged, the client waits for the outcome
+            Errors ret = (size >= MAX_SIZE1 && !canSplit(file)) ? Errors.TOO_BIG : addFileIn(file, false);
+            flush();
+            return ret;
+        } finally {
+            // left if it is not stored
+            Files.deleteIfExists(to);
+            Files.deleteIfExists(upDir);
         }
-        return null;
     }
     
     private void addedFile(FileInfo file, PartInfo pi) {
+        addedFile(file, pi, true);
+    }
+    
+    private void addedFile(FileInfo file, PartInfo pi, boolean flush) {
         String wpath = getStoreIdName();
         String part = "p" + pi.getNum();
         String uuid = getPathFromUUID(file.getUuid().toString()).toString();
@@ -276,18 +1398,27 @@ public abstract class AbstractStoreFileManager implements StoreFileManager {
         String fullTitle = Paths.get(part, uuid).relativize(Paths.get(path)).toString();
         Collection<String> tags = file.getTags();
         
-        indexer.getLogger().log(wpath, part, fullTitle, uuid, tags);
+        indexer.getLogger().log(wpath, part, fullTitle, uuid, tags, flush);
     }
     
     private void index(FileInfo file, PartInfo pi) {
+        if (file.isChunked() || file.isPacked() || file.isCompressed()) {
+            // the content stream is set by makeDoc
+            index(Collections.singletonList(new Added(file, pi)));
+            return;
+        }
         HashMap<String, Object> tags = new HashMap();
         tags.put(SolrIndexer.DOC_TAGS, new ArrayList<String>(file.getTags()));
+        if (file.getContentHash() != null) {
+            tags.put(SolrIndexer.DOC_CONTENT_HASH, file.getContentHash());
+        }
         indexer.addDocAsync(
                 getStoreIdName(), 
                 "p" + pi.getNum(),
                 getPathFromUUID(file.getUuid().toString()).toString(), 
                 getRelative(dir, file.getPath().toFile()), 
                 file.getPath().toFile(), 
+                file.getMeta(), 
                 file.getName(), 
                 tags,
                 new Consumer<Throwable>() {
@@ -312,6 +1443,163 @@ public abstract class AbstractStoreFileManager implements StoreFileManager {
         });
     }
     
+    private void index(Collection<Added> added) {
+        ArrayList<SolrIndexer.Doc> docs = new ArrayList<>();
+        ArrayList<Added> indexed = new ArrayList<>();
+        AtomicInteger left = new AtomicInteger(added.size());
+        for (Added a : added) {
+            FileInfo file = a.file;
+            docs.add(makeDoc(file, a.pi, t -> {
+                if (t == null) {
+                    System.out.println("INDEXED>"+file.getPath());
+                    file.setIndexed(true);
+                    synchronized (indexed) {
+                        indexed.add(a);
+                    }
+                }
+                if (left.decrementAndGet() == 0) {
+                    storeFileInfo(indexed);
+                }
+            }));
+        }
+        indexer.addDocsAsync(docs);
+    }
+    
+    SolrIndexer.Doc makeDoc(FileInfo file, PartInfo pi, Consumer<Throwable> result) {
+        HashMap<String, Object> tags = new HashMap();
+        tags.put(SolrIndexer.DOC_TAGS, new ArrayList<String>(file.getTags()));
+        if (file.getContentHash() != null) {
+            tags.put(SolrIndexer.DOC_CONTENT_HASH, file.getContentHash());
+        }
+        if (file.isChunked()) {
+            try {
+                ChunkedFile cf = ChunkedFile.read(file.getPath().toFile());
+                tags.put(SolrIndexer.DOC_CHUNKS, cf.getChunks().size());
+                FileMetadata meta = FileMetadata.read(file.getPath());
+                return new SolrIndexer.Doc(
+                        getStoreIdName(), 
+                        "p" + pi.getNum(),
+                        getPathFromUUID(file.getUuid().toString()).toString(), 
+                        getRelative(dir, file.getPath().toFile()), 
+                        file.getPath().toFile(), 
+                        meta.withContent(cf.getSize(), FileTime.fromMillis(cf.getMtime())), 
+                        cf.getName(), 
+                        tags,
+                        result).setContent(cf.toContentStream(dir), cf.getName());
+            } catch (IOException ex) {
+                Logger.getLogger(AbstractStoreFileManager.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+        if (file.isCompressed()) {
+            try {
+                tags.put(SolrIndexer.DOC_COMPRESSED, true);
+                FileMetadata meta = FileMetadata.read(file.getPath());
+                String name = getStoredName(file);
+                return new SolrIndexer.Doc(
+                        getStoreIdName(), 
+                        "p" + pi.getNum(),
+                        getPathFromUUID(file.getUuid().toString()).toString(), 
+                        getRelative(dir, file.getPath().toFile()), 
+                        file.getPath().toFile(), 
+                        meta.withContent(file.getContentSize(), meta.lastModifiedTime()), 
+                        name, 
+                        tags,
+                        result).setContent(makeCompressedStream(file.getPath(), name, file.getContentSize()), name);
+            } catch (IOException ex) {
+                Logger.getLogger(AbstractStoreFileManager.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+        if (file.isPacked()) {
+            try {
+                PackedFiles pf = getPacked(pi.getNum());
+                PackedFiles.Entry e = getPackedEntry(pf, file);
+                tags.put(SolrIndexer.DOC_PACKED, true);
+                FileMetadata meta = FileMetadata.read(pf.getSegment().toPath());
+                return new SolrIndexer.Doc(
+                        getStoreIdName(), 
+                        "p" + pi.getNum(),
+                        getPathFromUUID(file.getUuid().toString()).toString(), 
+                        getRelative(dir, file.getPath().toFile()), 
+                        file.getPath().toFile(), 
+                        meta.withContent(e.getLength(), FileTime.fromMillis(e.getMtime())), 
+                        file.getName(), 
+                        tags,
+                        result).setContent(pf.toContentStream(e), file.getName());
+            } catch (IOException ex) {
+                Logger.getLogger(AbstractStoreFileManager.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+        return new SolrIndexer.Doc(
+                getStoreIdName(), 
+                "p" + pi.getNum(),
+                getPathFromUUID(file.getUuid().toString()).toString(), 
+                getRelative(dir, file.getPath().toFile()), 
+                file.getPath().toFile(), 
+                file.getMeta(), 
+                file.getName(), 
+                tags,
+                result);
+    }
+    
+    // a part of the files kept in their place (see BulkImport), it is closed as a backed up one
+    public synchronized PartInfo newImportedPart(File source) throws Exception {
+        int num = lastnum.incrementAndGet();
+        File partDir = getPartDataDir(num);
+        partDir.mkdirs();
+        PartInfo pi = new PartInfo(partDir);
+        pi.setNum(num);
+        pi.setSource(source.getAbsolutePath());
+        pi.setBackUpDate(new Date());
+        writePartInfo(pi);
+        return pi;
+    }
+    
+    public synchronized PartInfo getImportedPart(int num, long size) {
+        PartInfo pi = readPartInfo(getPartDataDir(num));
+        if (pi != null) {
+            pi.setSize(size);
+        }
+        return pi;
+    }
+    
+    public synchronized void writeImportedPart(PartInfo pi) throws Exception {
+        writePartInfo(pi);
+    }
+    
+    Path getStoredPath(PartInfo pi, FileInfo file) {
+        return getPartDataDir(pi.getNum()).toPath().resolve(makeRelativePath(file));
+    }
+    
+    void logImported(FileInfo file, PartInfo pi) {
+        addedFile(file, pi, false);
+    }
+    
+    // the uuids of the store that have a doc, one query for the lot
+    Set<UUID> findIndexed(Collection<UUID> uuids) throws SolrServerException, IOException {
+        HashMap<String, UUID> byPath = new HashMap<>();
+        for (UUID uuid : uuids) {
+            byPath.put(getPathFromUUID(uuid.toString()).toString(), uuid);
+        }
+        HashSet<UUID> ret = new HashSet<>();
+        if (byPath.isEmpty()) {
+            return ret;
+        }
+        SolrQuery query = new SolrQuery();
+        query.setQuery(SolrSelect.toQueryNamedParamEscape(SolrIndexer.DOC_WPATH, getStoreIdName()));
+        query.addFilterQuery("{!terms f=" + SolrIndexer.DOC_UUID + "}" + String.join(",", byPath.keySet()));
+        query.setFields(SolrIndexer.DOC_UUID);
+        query.setStart(0);
+        query.setRows(byPath.size());
+        // the list of the uuids is too long for a url
+        for (SolrDocument sd : indexer.getSolrClient().query(query, SolrRequest.METHOD.POST).getResults()) {
+            UUID uuid = byPath.get(String.valueOf(sd.getFieldValue(SolrIndexer.DOC_UUID)));
+            if (uuid != null) {
+                ret.add(uuid);
+            }
+        }
+        return ret;
+    }
+    
     protected abstract String getStoreIdName(); 
     
     //TODO move to util
@@ -326,8 +1614,20 @@ public abstract class AbstractStoreFileManager implements StoreFileManager {
             int num = Integer.parseInt(partFile.getName().substring(1));
             PartInfo pi = parts.remove(num);
             if (pi != null) {
+                allocator.remove(pi);
                 pi.setBackUpDate(new Date());
+                PartJournal journal = getJournal(num);
+                journal.backUp(pi);
                 writePartInfo(pi);
+                journal.reset();
+                journals.remove(num);
+                PackedFiles pf = getPacked(num);
+                pf.close();
+                PartManifest pm = getManifest(num);
+                if (pf.getSegment().exists()) {
+                    pm.add(pm.makeEntries(pf.getSegment().toPath(), null, fileTransfer));
+                }
+                pm.compact();
                 System.out.println("back up>" + partFile.getAbsolutePath());
                 return true;
             }
@@ -355,7 +1655,12 @@ public abstract class AbstractStoreFileManager implements StoreFileManager {
         Path path = Paths.get(pfile.getAbsolutePath());
         byte[] bytes;
         bytes = JSONUtil.toJSON(pi.getProperties()).getBytes("UTF-8");
-        Files.write(path, bytes);
+        // the journal is emptied after it, so the snapshot is replaced as a whole
+        Path tmp = path.resolveSibling(pfile.getName() + ".tmp");
+        Files.write(tmp, bytes);
+        durability.before(tmp);
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        durability.dir(path.getParent());
     }
 
     public int getLastnum() {
@@ -366,6 +1671,86 @@ public abstract class AbstractStoreFileManager implements StoreFileManager {
         return parts;
     }
 
+    public synchronized PartAllocator getAllocator() {
+        return allocator;
+    }
+
+    public IOGovernor getIOGovernor() {
+        return ioGovernor;
+    }
+
+    public void setIOGovernor(IOGovernor ioGovernor) {
+        this.ioGovernor = ioGovernor;
+    }
+
+    public Durability getDurability() {
+        return durability;
+    }
+
+    public void setDurability(Durability durability) {
+        this.durability = durability;
+    }
+
+    public FileTransfer getFileTransfer() {
+        return fileTransfer;
+    }
+
+    public void setFileTransfer(FileTransfer fileTransfer) {
+        this.fileTransfer = fileTransfer;
+    }
+
+    public boolean isDedup() {
+        return dedup;
+    }
+
+    public void setDedup(boolean dedup) {
+        this.dedup = dedup;
+    }
+
+    public boolean isCompress() {
+        return compress;
+    }
+
+    public void setCompress(boolean compress) {
+        this.compress = compress;
+    }
+
+    public int getCompactEvery() {
+        return compactEvery;
+    }
+
+    public void setCompactEvery(int compactEvery) {
+        this.compactEvery = Math.max(1, compactEvery);
+    }
+
+    public long getStageLimit() {
+        return stageLimit;
+    }
+
+    public void setStageLimit(long stageLimit) {
+        this.stageLimit = stageLimit;
+        if (stageLimit <= 0) {
+            drainStaged();
+        }
+    }
+
+    // the source and the outcome of every staged item when it is stored, null - stored
+    public void setStagedResults(BiConsumer<Path, Errors> stagedResults) {
+        this.stagedResults = stagedResults;
+    }
+
+    public long getPackThreshold() {
+        return packThreshold;
+    }
+
+    public void setPackThreshold(long packThreshold) {
+        this.packThreshold = packThreshold;
+    }
+
+    public HashIndex getHashIndex() {
+        return hashIndex;
+    }
+
     public SolrIndexer getIndexer() {
         return indexer;
     }
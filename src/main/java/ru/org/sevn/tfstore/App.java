@@ -16,9 +16,14 @@
 package ru.org.sevn.tfstore;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.time.Duration;
 import java.time.ZonedDateTime;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 import java.util.logging.Level;
@@ -26,6 +31,9 @@ import java.util.logging.Logger;
 import ru.org.sevn.common.jmx.AbstractApp;
 import ru.org.sevn.common.jmx.JMXLocal;
 import ru.org.sevn.common.solr.SolrIndexer;
+import ru.org.sevn.common.util.Durability;
+import ru.org.sevn.common.util.FileTransfer;
+import ru.org.sevn.common.util.IOGovernor;
 import ru.org.sevn.common.util.WinExec;
 
 public class App extends AbstractApp implements AppMBean {
@@ -99,13 +107,82 @@ public class App extends AbstractApp implements AppMBean {
     protected void init() {
         startSolr();
         indexer = new SolrIndexer(solrUrl, SOLR_COLLECTION, new StoreLogger(new File(storeDir, "logs")));
+        indexer.setIOGovernor(ioGovernor);
         storeDistribute = new StoreDistribute(storeDir, indexer, new String[] {"media", "video", "audio", "pictures", "books", "personal"});
+        storeDistribute.setParallelism(parallelism);
+        storeDistribute.setBatch(batchSize, batchMillis);
+        storeDistribute.setIOGovernor(ioGovernor);
+        fileTransfer.setIOGovernor(ioGovernor);
+        storeDistribute.setFileTransfer(fileTransfer);
+        fileTransfer.setDurability(durability);
+        indexer.getLogger().setDurability(durability);
+        storeDistribute.setDurability(durability);
+        if (watchQuietMillis > 0) {
+            startWatch();
+        }
+        retryProcessor = new RetryProcessor(storeDistribute, indexer::isAlive);
+        retryProcessor.start();
+        sizeVerifier = new SizeVerifier(storeDistribute);
+        sizeVerifier.start();
+        if (uploadPort > 0) {
+            startUpload();
+        }
+    }
+    
+    private void startUpload() {
+        stopUpload();
+        uploadServer = new UploadServer(storeDistribute, uploadPort);
+        try {
+            uploadServer.start();
+        } catch (IOException ex) {
+            Logger.getLogger(App.class.getName()).log(Level.SEVERE, null, ex);
+            uploadServer = null;
+        }
+    }
+    
+    private void stopUpload() {
+        if (uploadServer != null) {
+            uploadServer.stop();
+            uploadServer = null;
+        }
+    }
+    
+    private void startWatch() {
+        stopWatch();
+        storeWatcher = new StoreWatcher(storeDistribute, storeDistribute.getInDir(), watchQuietMillis, watchReconcileMillis);
+        try {
+            storeWatcher.start();
+        } catch (IOException ex) {
+            Logger.getLogger(App.class.getName()).log(Level.SEVERE, null, ex);
+            storeWatcher = null;
+        }
+    }
+    
+    private void stopWatch() {
+        if (storeWatcher != null) {
+            storeWatcher.stop();
+            storeWatcher = null;
+        }
     }
     
     @Override
     protected void clean() {
         //TODO stop storeDistribute
+        stopWatch();
+        stopUpload();
+        if (retryProcessor != null) {
+            retryProcessor.stop();
+        }
+        if (sizeVerifier != null) {
+            sizeVerifier.stop();
+        }
+        if (storeDistribute != null) {
+            // the batched files are journaled and logged before the log is closed
+            storeDistribute.flush();
+        }
+        fileTransfer.shutdown();
         indexer.getLogger().close();
+        durability.shutdown();
         stopSolr();
     }
 
@@ -114,6 +191,166 @@ public class App extends AbstractApp implements AppMBean {
     private final File storeDir;
     private SolrIndexer indexer;
     private StoreDistribute storeDistribute;
+    private int parallelism = 1;
+    // moves and extraction reads, no limits by default
+    private final IOGovernor ioGovernor = new IOGovernor();
+    // when the stored files, the part journals and the log reach the disk
+    private final Durability durability = new Durability();
+    // copies to out/ when it is on another file system
+    private final FileTransfer fileTransfer = new FileTransfer(4);
+    private int batchSize = 1;
+    private long batchMillis = 0;
+    private StoreWatcher storeWatcher;
+    // error/SOLR and error/FATAL are processed again
+    private RetryProcessor retryProcessor;
+    // the part sizes of pN.info are checked in the background
+    private SizeVerifier sizeVerifier;
+    private volatile BulkImport bulkImport;
+    // 0 - no upload endpoint, else the local port of it
+    private int uploadPort = 0;
+    private UploadServer uploadServer;
+    // 0 - no continuous mode, in/ is processed by the schedule only
+    private long watchQuietMillis = 0;
+    private long watchReconcileMillis = 60 * 60 * 1000L;
+    
+    @Override
+    public long getImportFiles() {
+        BulkImport bi = bulkImport;
+        return (bi == null) ? 0 : bi.getFiles();
+    }
+    
+    @Override
+    public long getImportBytes() {
+        BulkImport bi = bulkImport;
+        return (bi == null) ? 0 : bi.getBytes();
+    }
+    
+    @Override
+    public String getImportStatus() {
+        BulkImport bi = bulkImport;
+        return (bi == null) ? "" : bi.toString();
+    }
+    
+    private void startImport(String div, File source, int threads, Collection<String> tags) {
+        BulkImport bi = bulkImport;
+        if (bi != null && "running".equals(bi.getStatus())) {
+            System.out.println("import>already running " + bi);
+            return;
+        }
+        bi = storeDistribute.newImport(div, source, tags, threads);
+        if (bi == null) {
+            System.out.println("import>no store " + div);
+            return;
+        }
+        bulkImport = bi;
+        Thread t = new Thread(bi, "tfstore-import-walker");
+        t.setDaemon(true);
+        t.start();
+    }
+    
+    @Override
+    public String getDurability() {
+        return durability.getMode().name();
+    }
+    
+    @Override
+    public void setDurability(String mode) {
+        durability.setMode(Durability.Mode.valueOf(mode.toUpperCase()));
+    }
+    
+    @Override
+    public long getDurabilitySyncs() {
+        return durability.getSyncs();
+    }
+    
+    @Override
+    public String getPartFill() {
+        return (storeDistribute == null) ? "" : storeDistribute.getPartFill();
+    }
+    
+    @Override
+    public int getRetryPending() {
+        return (retryProcessor == null) ? 0 : retryProcessor.getPending();
+    }
+    
+    @Override
+    public long getRetrySucceeded() {
+        return (retryProcessor == null) ? 0 : retryProcessor.getStats().getFiles() - retryProcessor.getStats().getErrors();
+    }
+    
+    @Override
+    public long getRetryGivenUp() {
+        return (retryProcessor == null) ? 0 : retryProcessor.getGivenUp();
+    }
+    
+    @Override
+    public int getIndexQueueDepth() {
+        return (indexer == null) ? 0 : indexer.getQueueDepth();
+    }
+    
+    @Override
+    public long getIndexQueueBytes() {
+        return (indexer == null) ? 0 : indexer.getQueueBytes();
+    }
+    
+    @Override
+    public long getIndexBlockedMillis() {
+        return (indexer == null) ? 0 : indexer.getBlockedMillis();
+    }
+    
+    @Override
+    public double getIoMBps() {
+        return ioGovernor.getMBps();
+    }
+    
+    @Override
+    public void setIoMBps(double mbps) {
+        ioGovernor.setMBps(mbps);
+    }
+    
+    @Override
+    public double getIoIops() {
+        return ioGovernor.getIops();
+    }
+    
+    @Override
+    public void setIoIops(double iops) {
+        ioGovernor.setIops(iops);
+    }
+    
+    @Override
+    public String getIoSchedule() {
+        return ioGovernor.getSchedule();
+    }
+    
+    @Override
+    public void setIoSchedule(String schedule) {
+        ioGovernor.setSchedule(schedule);
+    }
+    
+    public void setBatch(int size, long millis) {
+        this.batchSize = size;
+        this.batchMillis = millis;
+        if (storeDistribute != null) {
+            storeDistribute.setBatch(size, millis);
+        }
+    }
+    
+    public void setWatch(long quietMillis, long reconcileMillis) {
+        this.watchQuietMillis = quietMillis;
+        this.watchReconcileMillis = reconcileMillis;
+    }
+    
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+        if (storeDistribute != null) {
+            storeDistribute.setParallelism(parallelism);
+        }
+    }
     
     public void runTask() {
         System.out.println("create distributer");
@@ -142,6 +379,142 @@ public class App extends AbstractApp implements AppMBean {
                 case "deleteAll":
                     indexer.deleteAll();
                     break;
+                case "parallelism":
+                    setParallelism(Integer.parseInt(cmd[1]));
+                    System.out.println("parallelism=" + storeDistribute.getParallelism());
+                    break;
+                case "batch":
+                    setBatch(Integer.parseInt(cmd[1]), (cmd.length > 2) ? Long.parseLong(cmd[2]) : 1000L);
+                    System.out.println("batch=" + batchSize + " " + batchMillis + "ms");
+                    break;
+                case "indexQueue":
+                    indexer.setQueueLimits(Integer.parseInt(cmd[1]), Long.parseLong(cmd[2]));
+                    break;
+                case "status":
+                    System.out.println("index queue=" + getIndexQueueDepth() + " tasks, " + getIndexQueueBytes() + " bytes, blocked " + getIndexBlockedMillis() + " ms");
+                    break;
+                case "lane":
+                    storeDistribute.setLane(cmd[1], Integer.parseInt(cmd[2]), Integer.parseInt(cmd[3]));
+                    break;
+                case "io":
+                    setIoMBps(Double.parseDouble(cmd[1]));
+                    setIoIops(Double.parseDouble(cmd[2]));
+                    if (cmd.length > 3) {
+                        setIoSchedule(cmd[3]);
+                    }
+                    System.out.println(ioGovernor);
+                    break;
+                case "watch":
+                    if ("off".equals(cmd[1])) {
+                        setWatch(0, watchReconcileMillis);
+                        stopWatch();
+                    } else {
+                        setWatch(Long.parseLong(cmd[1]), (cmd.length > 2) ? Long.parseLong(cmd[2]) : watchReconcileMillis);
+                        startWatch();
+                    }
+                    System.out.println("watch=" + (storeWatcher != null));
+                    break;
+                case "dedup":
+                    storeDistribute.setDedup("on".equals(cmd[1]));
+                    System.out.println("dedup=" + cmd[1]);
+                    break;
+                case "compress":
+                    System.out.println("compress " + cmd[1] + "=" + cmd[2] + " : " + storeDistribute.setCompress(cmd[1], "on".equals(cmd[2])));
+                    break;
+                case "versions":
+                    if (cmd.length > 2) {
+                        storeDistribute.getChangeStoreFileManager().setVersionsDepth(Integer.parseInt(cmd[2]));
+                    }
+                    System.out.println("versions " + cmd[1] + " depth " + storeDistribute.getChangeStoreFileManager().getVersionsDepth());
+                    storeDistribute.getChangeStoreFileManager().getVersions(cmd[1]).forEach(System.out::println);
+                    break;
+                case "restore":
+                    try (OutputStream out = new FileOutputStream(cmd[3])) {
+                        storeDistribute.getChangeStoreFileManager().restoreVersion(cmd[1], Integer.parseInt(cmd[2]), out);
+                        System.out.println("restored " + cmd[1] + " " + cmd[2] + " to " + cmd[3]);
+                    } catch (Exception e) {
+                        Logger.getLogger(App.class.getName()).log(Level.SEVERE, null, e);
+                    }
+                    break;
+                case "pack":
+                    storeDistribute.setPackThreshold("off".equals(cmd[1]) ? 0 : Long.parseLong(cmd[1]));
+                    System.out.println("pack=" + cmd[1]);
+                    break;
+                case "media":
+                    if ("off".equals(cmd[1])) {
+                        storeDistribute.setMediaProfile(null);
+                    } else if (cmd.length > 5) {
+                        storeDistribute.setMediaProfile(new MediaProfile("custom", Long.parseLong(cmd[1]), Integer.parseInt(cmd[2]), Long.parseLong(cmd[3]), Long.parseLong(cmd[4]), Long.parseLong(cmd[5])));
+                    } else {
+                        MediaProfile mp = MediaProfile.get(cmd[1]);
+                        if (mp == null) {
+                            System.out.println("media>unknown " + cmd[1]);
+                            break;
+                        }
+                        storeDistribute.setMediaProfile(mp);
+                    }
+                    System.out.print(getPartFill());
+                    break;
+                case "stage":
+                    storeDistribute.setStageLimit("off".equals(cmd[1]) ? 0 : Long.parseLong(cmd[1]));
+                    System.out.println("stage=" + cmd[1]);
+                    break;
+                case "sizes":
+                    if (cmd.length > 2) {
+                        sizeVerifier.setPauseMillis(Long.parseLong(cmd[1]));
+                        sizeVerifier.setPeriod(Long.parseLong(cmd[2]));
+                    } else {
+                        try {
+                            sizeVerifier.verify();
+                        } catch (InterruptedException ex) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                    System.out.println(sizeVerifier);
+                    break;
+                case "durability":
+                    setDurability(cmd[1]);
+                    if (cmd.length > 2) {
+                        durability.setWindowMillis(Long.parseLong(cmd[2]));
+                    }
+                    System.out.println(durability);
+                    break;
+                case "alloc":
+                    storeDistribute.setAllocPolicy("ffd".equals(cmd[1]) ? PartAllocator.Policy.FIRST_FIT_DECREASING : PartAllocator.Policy.BEST_FIT);
+                    System.out.print(getPartFill());
+                    break;
+                case "retry":
+                    if (cmd.length > 2) {
+                        retryProcessor.setBudget(Integer.parseInt(cmd[1]), Integer.parseInt(cmd[2]));
+                    } else {
+                        retryProcessor.retry();
+                    }
+                    System.out.println(retryProcessor);
+                    break;
+                case "import":
+                    if ("stop".equals(cmd[1])) {
+                        if (bulkImport != null) {
+                            bulkImport.stop();
+                        }
+                    } else {
+                        startImport(cmd[1], new File(cmd[2]), (cmd.length > 3) ? Integer.parseInt(cmd[3]) : 4,
+                                Arrays.asList(cmd).subList(Math.min(cmd.length, 4), cmd.length));
+                    }
+                    System.out.println("import>" + getImportStatus());
+                    break;
+                case "upload":
+                    if ("off".equals(cmd[1])) {
+                        uploadPort = 0;
+                        stopUpload();
+                    } else {
+                        uploadPort = Integer.parseInt(cmd[1]);
+                        startUpload();
+                    }
+                    System.out.println("upload=" + (uploadServer != null));
+                    break;
+                case "resetCheckpoint":
+                    storeDistribute.resetCheckpoint();
+                    break;
                 case "restoreIndexing":
                     storeDistribute.restoreIndexing();
                     break;
@@ -152,6 +525,25 @@ public class App extends AbstractApp implements AppMBean {
                         Logger.getLogger(App.class.getName()).log(Level.SEVERE, null, e);
                     }
                     break;
+                case "manifest":
+                    try {
+                        PartManifest pm = storeDistribute.writeManifest(cmd[1], cmd[2]);
+                        System.out.println("manifest " + cmd[1] + " : " + cmd[2] + " : " + ((pm == null) ? null : pm.getFile()));
+                    } catch (Exception e) {
+                        Logger.getLogger(App.class.getName()).log(Level.SEVERE, null, e);
+                    }
+                    break;
+                case "verify":
+                    try {
+                        List<String> problems = storeDistribute.verify(cmd[1], cmd[2], cmd.length > 3 && "full".equals(cmd[3]));
+                        System.out.println("verify " + cmd[1] + " : " + cmd[2] + " : " + ((problems == null) ? null : problems.size() + " problems"));
+                        if (problems != null) {
+                            problems.forEach(System.out::println);
+                        }
+                    } catch (Exception e) {
+                        Logger.getLogger(App.class.getName()).log(Level.SEVERE, null, e);
+                    }
+                    break;
                 case "backup":
                     try {
                         boolean ret = storeDistribute.backUp(cmd[1], cmd[2]);
@@ -21,4 +21,25 @@ public interface AppMBean {
     void stop();
     void cmd(String[] cmd);
     boolean isRunning();
+    int getParallelism();
+    void setParallelism(int parallelism);
+    int getIndexQueueDepth();
+    long getIndexQueueBytes();
+    long getIndexBlockedMillis();
+    double getIoMBps();
+    void setIoMBps(double mbps);
+    double getIoIops();
+    void setIoIops(double iops);
+    String getIoSchedule();
+    void setIoSchedule(String schedule);
+    String getDurability();
+    void setDurability(String mode);
+    long getDurabilitySyncs();
+    String getPartFill();
+    int getRetryPending();
+    long getRetrySucceeded();
+    long getRetryGivenUp();
+    long getImportFiles();
+    long getImportBytes();
+    String getImportStatus();
 }
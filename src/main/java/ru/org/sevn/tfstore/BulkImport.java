@@ -0,0 +1,427 @@
+/*
+ * Copyright 2017 Veronica Anokhina.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.org.sevn.tfstore;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import ru.org.sevn.common.solr.SolrIndexer;
+
+// registers an existing tree as parts of a store without moving the data:
+// every file gets a link pN/<uuid path>/name to it, the parts are closed as backed up ones
+// #tag directories of the tree are the tags like in in/
+// the files are walked in the name order, the batches are indexed in parallel without a commit,
+// the position after the last committed batch is kept in import.state, so a stopped import goes on from there,
+// it does not move past a failed batch
+// the uuid is made from the path, an item that already has a doc (an import run again without import.state) is skipped,
+// the doc id has the part in it and the new part would index the item twice
+public class BulkImport implements Runnable {
+
+    public static String STATE_FILE = "import.state";
+
+    private final AbstractStoreFileManager mgr;
+    private final File source;
+    private final Collection<String> tags;
+    private final int threads;
+    private final File stateFile;
+
+    private int batchSize = 500;
+    // batches between the commits and the state writes
+    private int commitBatches = 10;
+    private long partSize = StoreFileManager.MAX_SIZE;
+
+    // walker state, the part being filled
+    private PartInfo part;
+    private String last;
+    // the last path imported at the previous run
+    private String resumeAfter;
+    // the state after the batch, the batches are completed out of order
+    private final TreeMap<Long, String> pendingStates = new TreeMap<>();
+    private final HashSet<Long> completed = new HashSet<>();
+    private long nextBatch;
+    private long committedUpTo;
+    private int sinceCommit;
+
+    private final AtomicLong files = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong failedBatches = new AtomicLong();
+    private final long started = System.currentTimeMillis();
+    private volatile String status = "new";
+    private volatile boolean stopped;
+
+    private static class Item {
+        private final Path path;
+        private final String rel;
+        private final Collection<String> tags;
+        private long size;
+
+        Item(Path path, String rel, Collection<String> tags) {
+            this.path = path;
+            this.rel = rel;
+            this.tags = tags;
+        }
+    }
+
+    public BulkImport(AbstractStoreFileManager mgr, File source, Collection<String> tags, int threads) {
+        this.mgr = mgr;
+        this.source = source.getAbsoluteFile();
+        this.tags = tags;
+        this.threads = Math.max(1, threads);
+        this.stateFile = new File(mgr.getDir(), STATE_FILE);
+    }
+
+    public void setBatch(int batchSize, int commitBatches) {
+        this.batchSize = Math.max(1, batchSize);
+        this.commitBatches = Math.max(1, commitBatches);
+    }
+
+    @Override
+    public void run() {
+        ExecutorService workers = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "tfstore-import");
+            t.setDaemon(true);
+            return t;
+        });
+        Semaphore slots = new Semaphore(threads * 2);
+        try {
+            if (!readState()) {
+                return;
+            }
+            status = "running";
+            ArrayList<Item> batch = new ArrayList<>();
+            walk(source.toPath(), new ArrayList<>(), new HashSet<>(tags), item -> {
+                batch.add(item);
+                if (batch.size() >= batchSize) {
+                    submit(workers, slots, new ArrayList<>(batch));
+                    batch.clear();
+                }
+            });
+            if (!batch.isEmpty()) {
+                submit(workers, slots, batch);
+            }
+            workers.shutdown();
+            workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            commit(true);
+            if (part != null) {
+                mgr.writeImportedPart(part);
+            }
+            if (stopped) {
+                status = "stopped";
+            } else if (failedBatches.get() > 0) {
+                // import.state is before the first failed batch, the next run goes on from there
+                status = "done, failed batches " + failedBatches.get();
+            } else {
+                status = "done";
+                stateFile.delete();
+            }
+        } catch (Exception ex) {
+            Logger.getLogger(BulkImport.class.getName()).log(Level.SEVERE, null, ex);
+            status = "failed: " + ex;
+        } finally {
+            workers.shutdownNow();
+            System.out.println("import>" + this);
+        }
+    }
+
+    public void stop() {
+        stopped = true;
+    }
+
+    private interface ItemConsumer {
+        void accept(Item item) throws Exception;
+    }
+
+    // sorted by the name on every level, so the order is the same on the next run
+    private void walk(Path dir, List<String> relDir, Collection<String> dirTags, ItemConsumer consumer) throws Exception {
+        ArrayList<Path> children = new ArrayList<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+            for (Path p : ds) {
+                children.add(p);
+            }
+        }
+        Collections.sort(children, (a, b) -> a.getFileName().toString().compareTo(b.getFileName().toString()));
+        for (Path p : children) {
+            if (stopped) {
+                return;
+            }
+            String name = p.getFileName().toString();
+            ArrayList<String> rel = new ArrayList<>(relDir);
+            rel.add(name);
+            int cmp = compare(rel, resumeAfter);
+            if (cmp <= 0 && !isPrefix(rel, resumeAfter)) {
+                // imported at the last run
+                continue;
+            }
+            if (Files.isDirectory(p)) {
+                Collection<String> t = dirTags;
+                if (name.startsWith("#")) {
+                    t = new HashSet<>(dirTags);
+                    t.add(name);
+                }
+                walk(p, rel, t, consumer);
+            } else if (Files.isRegularFile(p)) {
+                consumer.accept(new Item(p, String.join("/", rel), dirTags));
+            }
+        }
+    }
+
+    private static int compare(List<String> rel, String last) {
+        if (last == null) {
+            return 1;
+        }
+        String[] l = last.split("/");
+        for (int i = 0; i < rel.size() && i < l.length; i++) {
+            int c = rel.get(i).compareTo(l[i]);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return Integer.compare(rel.size(), l.length);
+    }
+
+    private static boolean isPrefix(List<String> rel, String last) {
+        if (last == null) {
+            return false;
+        }
+        String[] l = last.split("/");
+        if (rel.size() >= l.length) {
+            return false;
+        }
+        for (int i = 0; i < rel.size(); i++) {
+            if (!rel.get(i).equals(l[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // the part of every item is chosen here, in the walk order
+    private void submit(ExecutorService workers, Semaphore slots, ArrayList<Item> all) throws Exception {
+        ArrayList<UUID> uuids = new ArrayList<>();
+        for (Item item : all) {
+            uuids.add(UUID.nameUUIDFromBytes((mgr.getStoreIdName() + "/" + item.rel).getBytes(StandardCharsets.UTF_8)));
+        }
+        Set<UUID> indexed = mgr.findIndexed(uuids);
+        ArrayList<Item> batch = new ArrayList<>();
+        ArrayList<FileInfo> infos = new ArrayList<>();
+        ArrayList<PartInfo> parts = new ArrayList<>();
+        for (int i = 0; i < all.size(); i++) {
+            Item item = all.get(i);
+            last = item.rel;
+            if (indexed.contains(uuids.get(i))) {
+                skipped.incrementAndGet();
+                continue;
+            }
+            batch.add(item);
+            item.size = Files.size(item.path);
+            if (part == null || (part.getSize() > 0 && part.getSize() + item.size > partSize)) {
+                if (part != null) {
+                    mgr.writeImportedPart(part);
+                }
+                part = mgr.newImportedPart(source);
+                System.out.println("import>part p" + part.getNum());
+            }
+            part.incrSize(item.size);
+            FileInfo fi = new FileInfo().setPath(item.path);
+            fi.setUuid(uuids.get(i));
+            fi.getTags().addAll(item.tags);
+            infos.add(fi);
+            parts.add(part);
+        }
+        if (part == null) {
+            // all are skipped and there is no part for the state yet, the next run skips them again
+            return;
+        }
+        long num;
+        synchronized (this) {
+            num = nextBatch++;
+            pendingStates.put(num, last + "\t" + part.getNum() + "\t" + part.getSize());
+        }
+        if (batch.isEmpty()) {
+            done(num, true);
+            return;
+        }
+        slots.acquire();
+        workers.execute(() -> {
+            boolean ok = false;
+            try {
+                ok = index(batch, infos, parts);
+            } catch (Exception ex) {
+                Logger.getLogger(BulkImport.class.getName()).log(Level.SEVERE, null, ex);
+                errors.addAndGet(batch.size());
+            } finally {
+                slots.release();
+                done(num, ok);
+            }
+        });
+    }
+
+    // false - some of the items are not linked or not indexed
+    private boolean index(ArrayList<Item> batch, ArrayList<FileInfo> infos, ArrayList<PartInfo> parts) throws IOException {
+        boolean ret = true;
+        ArrayList<SolrIndexer.Doc> docs = new ArrayList<>();
+        for (int i = 0; i < batch.size(); i++) {
+            FileInfo fi = infos.get(i);
+            PartInfo pi = parts.get(i);
+            Path link = mgr.getStoredPath(pi, fi);
+            if (!Files.exists(link, LinkOption.NOFOLLOW_LINKS)) {
+                Files.createDirectories(link.getParent());
+                try {
+                    Files.createSymbolicLink(link, batch.get(i).path);
+                } catch (IOException | UnsupportedOperationException ex) {
+                    Logger.getLogger(BulkImport.class.getName()).log(Level.SEVERE, "Can't link " + batch.get(i).path, ex);
+                    errors.incrementAndGet();
+                    ret = false;
+                    continue;
+                }
+            }
+            // the attributes of the file, not of the link
+            fi.getMeta();
+            fi.setPath(link);
+            mgr.logImported(fi, pi);
+            docs.add(mgr.makeDoc(fi, pi, null));
+        }
+        mgr.getIndexer().getLogger().flush();
+        Map<SolrIndexer.Doc, Throwable> errs = mgr.getIndexer().addDocs(docs);
+        errors.addAndGet(errs.size());
+        files.addAndGet(docs.size() - errs.size());
+        for (int i = 0; i < batch.size(); i++) {
+            bytes.addAndGet(batch.get(i).size);
+        }
+        return ret && errs.isEmpty();
+    }
+
+    // a failed batch is not completed, so the state stays before it
+    private void done(long num, boolean ok) {
+        if (!ok) {
+            failedBatches.incrementAndGet();
+        }
+        synchronized (this) {
+            if (ok) {
+                completed.add(num);
+            }
+            sinceCommit++;
+            if (sinceCommit < commitBatches) {
+                return;
+            }
+        }
+        commit(false);
+    }
+
+    // the state moves to the last batch done with all the batches before it
+    private synchronized void commit(boolean force) {
+        if (!force && sinceCommit < commitBatches) {
+            return;
+        }
+        sinceCommit = 0;
+        try {
+            mgr.getIndexer().getSolrClient().commit();
+        } catch (Exception ex) {
+            Logger.getLogger(BulkImport.class.getName()).log(Level.SEVERE, null, ex);
+            return;
+        }
+        String state = null;
+        while (completed.remove(committedUpTo)) {
+            state = pendingStates.remove(committedUpTo);
+            committedUpTo++;
+        }
+        if (state != null) {
+            writeState(state);
+        }
+    }
+
+    // source, last imported path, part number, part size
+    private boolean readState() throws IOException {
+        if (!stateFile.exists()) {
+            return true;
+        }
+        String[] l = new String(Files.readAllBytes(stateFile.toPath()), StandardCharsets.UTF_8).trim().split("\t");
+        if (l.length < 4) {
+            return true;
+        }
+        if (!l[0].equals(source.toString())) {
+            status = "another import is not finished: " + l[0];
+            return false;
+        }
+        resumeAfter = l[1];
+        part = mgr.getImportedPart(Integer.parseInt(l[2]), Long.parseLong(l[3]));
+        System.out.println("import>resumed after " + resumeAfter);
+        return true;
+    }
+
+    private void writeState(String state) {
+        File tmp = new File(stateFile.getParentFile(), stateFile.getName() + ".tmp");
+        try {
+            Files.write(tmp.toPath(), (source + "\t" + state).getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp.toPath(), stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            Logger.getLogger(BulkImport.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    public long getFiles() {
+        return files.get();
+    }
+
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    public long getErrors() {
+        return errors.get();
+    }
+
+    public long getSkipped() {
+        return skipped.get();
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public double getFilesPerSecond() {
+        long ms = System.currentTimeMillis() - started;
+        return (ms <= 0) ? files.get() : files.get() * 1000.0 / ms;
+    }
+
+    @Override
+    public String toString() {
+        return source + ": " + status + ", " + files.get() + " files, " + bytes.get() + " bytes, " + errors.get() + " errors, " + skipped.get() + " skipped, " + String.format("%.1f", getFilesPerSecond()) + " files/s";
+    }
+}
@@ -15,17 +15,321 @@
  */
 package ru.org.sevn.tfstore;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.solr.common.SolrDocument;
 import ru.org.sevn.common.solr.SolrIndexer;
+import ru.org.sevn.common.util.BinaryDelta;
+import ru.org.sevn.common.util.FileTransfer;
+import ru.org.sevn.common.util.IOUtil;
 
+// #override keeps the history: the newest version is the stored file, the older ones are
+// deltas against the next version in versions/<hash of the name>/dN.delta, see BinaryDelta
+// the history file there: name, current N kind path (kind: - plain, c compressed, p packed, k chunked),
+// then a line per older version: N size mtime sha256
 public class ChangeStoreFileManager extends AbstractStoreFileManager {
 
+    public static final String DIR_VERSIONS = "versions";
+
+    public static class Version {
+        private final int num;
+        private final long size;
+        private final long mtime;
+        private final String hash;
+
+        public Version(int num, long size, long mtime, String hash) {
+            this.num = num;
+            this.size = size;
+            this.mtime = mtime;
+            this.hash = hash;
+        }
+
+        public int getNum() {
+            return num;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getMtime() {
+            return mtime;
+        }
+
+        public String getHash() {
+            return hash;
+        }
+
+        @Override
+        public String toString() {
+            return num + " " + size + " " + mtime + " " + hash;
+        }
+    }
+
+    private static class History {
+        private String name;
+        private int current = 1;
+        private String kind;
+        private String path;
+        private final ArrayList<Version> versions = new ArrayList<>();
+    }
+
+    private final File versionsDir;
+    // the older versions kept, 0 - the old copy is deleted
+    private volatile int versionsDepth = 5;
+    // the uuid of the new copy -> the history waiting for it, see storedVersion
+    private final Map<UUID, History> pending = new ConcurrentHashMap<>();
+
     public ChangeStoreFileManager(File dir, SolrIndexer indexer) {
         super(dir, indexer);
+        this.versionsDir = new File(dir, DIR_VERSIONS);
     }
 
     @Override
     protected String getStoreIdName() {
         return "change";
     }
-}
\ No newline at end of file
+
+    private File getHistoryDir(String name) {
+        String h = FileTransfer.toHex(FileTransfer.newDigest().digest(name.getBytes(StandardCharsets.UTF_8)));
+        return new File(new File(versionsDir, h.substring(0, 3)), h);
+    }
+
+    private static File getDelta(File historyDir, int num) {
+        return new File(historyDir, "d" + num + ".delta");
+    }
+
+    // the old content becomes a delta against the new one before the old copy is deleted
+    @Override
+    protected boolean keepVersion(FileInfo file, File old, SolrDocument oldDoc) {
+        if (versionsDepth <= 0 || file.getMeta() == null || !file.getMeta().isRegularFile()) {
+            return false;
+        }
+        String oldPath = getRelative(getDir(), old);
+        File hdir = getHistoryDir(file.getName());
+        History h = read(hdir);
+        if (h != null && !oldPath.equals(h.path)) {
+            // the chain is broken, e.g. the part of the current version was backed up
+            IOUtil.forEachFile(hdir, File::delete);
+            h = null;
+        }
+        if (h == null) {
+            h = new History();
+            h.name = file.getName();
+        }
+        FileInfo oldInfo = storedInfo(old, oldDoc);
+        Path target = null;
+        File delta = getDelta(hdir, h.current);
+        File tmp = new File(hdir, delta.getName() + ".tmp");
+        try {
+            target = materialize(oldInfo);
+            hdir.mkdirs();
+            byte[] hash;
+            try (OutputStream out = new FileOutputStream(tmp)) {
+                hash = BinaryDelta.create(file.getPath(), target, out);
+            }
+            Files.move(tmp.toPath(), delta.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            h.versions.add(new Version(h.current, Files.size(target), old.lastModified(), FileTransfer.toHex(hash)));
+            System.out.println("version>" + file.getName() + " " + h.current + " " + delta.length() + " of " + Files.size(target));
+        } catch (IOException ex) {
+            Logger.getLogger(ChangeStoreFileManager.class.getName()).log(Level.SEVERE, "No version of " + old, ex);
+            tmp.delete();
+            return false;
+        } finally {
+            if (target != null && !target.equals(oldInfo.getPath())) {
+                target.toFile().delete();
+            }
+        }
+        h.versions.sort(Comparator.comparingInt(Version::getNum));
+        while (h.versions.size() > versionsDepth) {
+            getDelta(hdir, h.versions.remove(0).num).delete();
+        }
+        h.current++;
+        pending.put(file.getUuid(), h);
+        return true;
+    }
+
+    @Override
+    protected void storedVersion(FileInfo file, Errors res) {
+        History h = pending.remove(file.getUuid());
+        if (h == null) {
+            return;
+        }
+        File hdir = getHistoryDir(h.name);
+        if (res != null) {
+            // there is no base for the deltas
+            Logger.getLogger(ChangeStoreFileManager.class.getName()).log(Level.SEVERE, "The history of " + h.name + " is lost: " + res);
+            IOUtil.forEachFile(hdir, File::delete);
+            hdir.delete();
+            return;
+        }
+        h.path = getRelative(getDir(), file.getPath().toFile());
+        h.kind = file.isCompressed() ? "c" : file.isPacked() ? "p" : file.isChunked() ? "k" : "-";
+        write(hdir, h);
+    }
+
+    private FileInfo storedInfo(File stored, SolrDocument doc) {
+        FileInfo ret = new FileInfo();
+        ret.setFile(stored);
+        ret.setCompressed(doc.containsKey(SolrIndexer.DOC_COMPRESSED), 0);
+        ret.setPacked(doc.containsKey(SolrIndexer.DOC_PACKED));
+        ret.setChunked(doc.containsKey(SolrIndexer.DOC_CHUNKS));
+        return ret;
+    }
+
+    // the plain stored file or a temp copy of the content
+    private Path materialize(FileInfo stored) throws IOException {
+        if (!stored.isCompressed() && !stored.isPacked() && !stored.isChunked()) {
+            return stored.getPath();
+        }
+        Path tmp = Files.createTempFile(getTempDir().toPath(), "ver", null);
+        try (InputStream in = openStored(stored)) {
+            Files.copy(in, tmp, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException ex) {
+            Files.deleteIfExists(tmp);
+            throw ex;
+        }
+        return tmp;
+    }
+
+    private History read(File hdir) {
+        File f = new File(hdir, "history");
+        if (!f.exists()) {
+            return null;
+        }
+        History h = new History();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(f), StandardCharsets.UTF_8))) {
+            h.name = in.readLine();
+            String[] c = in.readLine().split(" ", 4);
+            h.current = Integer.parseInt(c[1]);
+            h.kind = c[2];
+            h.path = c[3];
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] l = line.split(" ");
+                if (l.length == 4) {
+                    h.versions.add(new Version(Integer.parseInt(l[0]), Long.parseLong(l[1]), Long.parseLong(l[2]), l[3]));
+                }
+            }
+        } catch (IOException | RuntimeException ex) {
+            Logger.getLogger(ChangeStoreFileManager.class.getName()).log(Level.SEVERE, null, ex);
+            return null;
+        }
+        return h;
+    }
+
+    private void write(File hdir, History h) {
+        hdir.mkdirs();
+        File f = new File(hdir, "history");
+        File tmp = new File(hdir, "history.tmp");
+        try {
+            try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8))) {
+                out.write(h.name + "\n");
+                out.write("current " + h.current + " " + h.kind + " " + h.path + "\n");
+                for (Version v : h.versions) {
+                    out.write(v + "\n");
+                }
+            }
+            Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            Logger.getLogger(ChangeStoreFileManager.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    // the older versions of the file, the oldest first, the current one is the stored file
+    public List<Version> getVersions(String name) {
+        History h = read(getHistoryDir(name));
+        return (h == null) ? new ArrayList<>() : new ArrayList<>(h.versions);
+    }
+
+    // the deltas from the current version down to num are applied one by one,
+    // every step is streamed into a temp file which is the base of the next one
+    public void restoreVersion(String name, int num, OutputStream out) throws IOException {
+        File hdir = getHistoryDir(name);
+        History h = read(hdir);
+        if (h == null || h.versions.stream().noneMatch(v -> v.num == num)) {
+            throw new IOException("No version " + num + " of " + name);
+        }
+        FileInfo current = new FileInfo();
+        current.setFile(new File(getDir(), h.path));
+        current.setCompressed("c".equals(h.kind), 0);
+        current.setPacked("p".equals(h.kind));
+        current.setChunked("k".equals(h.kind));
+        Path base = materialize(current);
+        ArrayList<Version> chain = new ArrayList<>(h.versions);
+        chain.sort(Comparator.comparingInt(Version::getNum).reversed());
+        try {
+            for (Version v : chain) {
+                if (v.num < num) {
+                    break;
+                }
+                Path next = (v.num == num) ? null : Files.createTempFile(getTempDir().toPath(), "ver", null);
+                MessageDigest md = FileTransfer.newDigest();
+                try (InputStream in = new FileInputStream(getDelta(hdir, v.num));
+                     OutputStream o = new DigestOutputStream((next == null) ? new NonClosing(out) : Files.newOutputStream(next), md)) {
+                    BinaryDelta.apply(base, in, o);
+                }
+                if (!FileTransfer.toHex(md.digest()).equals(v.hash)) {
+                    throw new IOException("Checksum mismatch: version " + v.num + " of " + name);
+                }
+                if (!base.equals(current.getPath())) {
+                    Files.deleteIfExists(base);
+                }
+                base = (next == null) ? current.getPath() : next;
+            }
+        } finally {
+            if (!base.equals(current.getPath())) {
+                Files.deleteIfExists(base);
+            }
+        }
+    }
+
+    // the caller closes its stream
+    private static class NonClosing extends FilterOutputStream {
+        NonClosing(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+
+    public int getVersionsDepth() {
+        return versionsDepth;
+    }
+
+    public void setVersionsDepth(int versionsDepth) {
+        this.versionsDepth = Math.max(0, versionsDepth);
+    }
+}
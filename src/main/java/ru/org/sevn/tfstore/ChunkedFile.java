@@ -0,0 +1,216 @@
+/*
+ * Copyright 2017 Veronica Anokhina.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.org.sevn.tfstore;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.List;
+import org.apache.solr.common.util.ContentStreamBase;
+
+// a file bigger than a part: the segments name.0, name.1, ... go to the parts with room,
+// name.chunks in the part of the first segment lists them
+// the first line: size mtime sha256 name, then a line per segment: size sha256 path (relative to the store dir, / separators)
+public class ChunkedFile {
+
+    public static final String SUFFIX = ".chunks";
+    // a part takes several segments, the last one is smaller
+    public static final long CHUNK_SIZE = 32 * 1024 * 1024L;
+
+    public static class Chunk {
+        private final String path;
+        private final long size;
+        private final String hash;
+
+        public Chunk(String path, long size, String hash) {
+            this.path = path;
+            this.size = size;
+            this.hash = hash;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public String getHash() {
+            return hash;
+        }
+    }
+
+    private final String name;
+    private final long size;
+    private final long mtime;
+    private final String hash;
+    private final List<Chunk> chunks;
+
+    public ChunkedFile(String name, long size, long mtime, String hash, List<Chunk> chunks) {
+        this.name = name;
+        this.size = size;
+        this.mtime = mtime;
+        this.hash = hash;
+        this.chunks = chunks;
+    }
+
+    public static boolean isChunked(File f) {
+        return f.getName().endsWith(SUFFIX) && f.isFile();
+    }
+
+    public static String getManifestName(String name) {
+        return name + SUFFIX;
+    }
+
+    public static String getSegmentName(String name, int i) {
+        return name + "." + i;
+    }
+
+    public static ChunkedFile read(File manifest) throws IOException {
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(manifest), StandardCharsets.UTF_8))) {
+            String line = in.readLine();
+            String[] h = (line == null) ? new String[0] : line.split(" ", 4);
+            if (h.length < 4) {
+                throw new IOException("Wrong chunk manifest " + manifest);
+            }
+            ArrayList<Chunk> chunks = new ArrayList<>();
+            while ((line = in.readLine()) != null) {
+                String[] l = line.split(" ", 3);
+                if (l.length == 3) {
+                    chunks.add(new Chunk(l[2], Long.parseLong(l[0]), l[1]));
+                }
+            }
+            return new ChunkedFile(h[3], Long.parseLong(h[0]), Long.parseLong(h[1]), h[2], chunks);
+        } catch (NumberFormatException ex) {
+            throw new IOException("Wrong chunk manifest " + manifest, ex);
+        }
+    }
+
+    public void write(File manifest) throws IOException {
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(manifest), StandardCharsets.UTF_8))) {
+            out.write(size + " " + mtime + " " + hash + " " + name + "\n");
+            for (Chunk c : chunks) {
+                out.write(c.size + " " + c.hash + " " + c.path + "\n");
+            }
+        }
+    }
+
+    public File getSegment(File storeDir, Chunk c) {
+        return new File(storeDir, c.path.replace('/', File.separatorChar));
+    }
+
+    // the segments one after another, a segment is opened when the previous one is read
+    public InputStream openStream(File storeDir) {
+        Iterator<Chunk> it = chunks.iterator();
+        Enumeration<InputStream> e = new Enumeration<InputStream>() {
+            @Override
+            public boolean hasMoreElements() {
+                return it.hasNext();
+            }
+
+            @Override
+            public InputStream nextElement() {
+                try {
+                    return new FileInputStream(getSegment(storeDir, it.next()));
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            }
+        };
+        return new SequenceInputStream(chunks.isEmpty() ? Collections.emptyEnumeration() : e) {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                try {
+                    return super.read(b, off, len);
+                } catch (UncheckedIOException ex) {
+                    throw ex.getCause();
+                }
+            }
+
+            @Override
+            public int read() throws IOException {
+                try {
+                    return super.read();
+                } catch (UncheckedIOException ex) {
+                    throw ex.getCause();
+                }
+            }
+        };
+    }
+
+    // the whole file for the indexer
+    public ContentStreamBase toContentStream(File storeDir) {
+        ContentStreamBase ret = new ContentStreamBase() {
+            @Override
+            public InputStream getStream() throws IOException {
+                try {
+                    return openStream(storeDir);
+                } catch (UncheckedIOException ex) {
+                    throw ex.getCause();
+                }
+            }
+        };
+        ret.setName(name);
+        ret.setSize(size);
+        ret.setSourceInfo(name);
+        return ret;
+    }
+
+    // the segments and the manifest, false if any of them is left
+    public boolean delete(File storeDir, File manifest) {
+        boolean ret = true;
+        for (Chunk c : chunks) {
+            File f = getSegment(storeDir, c);
+            ret &= !f.exists() || f.delete();
+        }
+        return manifest.delete() && ret;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getMtime() {
+        return mtime;
+    }
+
+    public String getHash() {
+        return hash;
+    }
+
+    public List<Chunk> getChunks() {
+        return chunks;
+    }
+}
@@ -28,6 +28,7 @@ import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.UUID;
 import org.json.JSONObject;
+import ru.org.sevn.common.util.FileMetadata;
 
 public class FileInfo {
 
@@ -37,6 +38,14 @@ public class FileInfo {
     private Date dateOff;
     private Collection<String> tags = new HashSet<String>();
     private UUID uuid = UUID.randomUUID();
+    private String contentHash;
+    // stored in segments, the path is the ChunkedFile manifest
+    private boolean chunked;
+    // appended to the part segment, the path is where the file would be, see PackedFiles
+    private boolean packed;
+    // stored as path + ".gz", size - the size of the content
+    private boolean compressed;
+    private long size;
 
     public FileInfo() {
         
@@ -71,6 +80,11 @@ public class FileInfo {
         String uuid = (String)m.get("uuid");
         Boolean indexed = (Boolean)m.get("indexed");
         Collection tags = (Collection)m.get("tags");
+        String contentHash = (String)m.get("hash");
+        Boolean chunked = (Boolean)m.get("chunked");
+        Boolean packed = (Boolean)m.get("packed");
+        Boolean compressed = (Boolean)m.get("compressed");
+        Number size = (Number)m.get("size");
         if (path != null) {
             fi.path = Paths.get(path);
             if (!fi.path.isAbsolute()) {
@@ -91,6 +105,21 @@ public class FileInfo {
         if (indexed != null) {
             fi.indexed = indexed;
         }
+        if (contentHash != null) {
+            fi.contentHash = contentHash;
+        }
+        if (chunked != null) {
+            fi.chunked = chunked;
+        }
+        if (packed != null) {
+            fi.packed = packed;
+        }
+        if (compressed != null) {
+            fi.compressed = compressed;
+        }
+        if (size != null) {
+            fi.size = size.longValue();
+        }
         fi.setRoot(root);
         return fi;
     }
@@ -113,6 +142,19 @@ public class FileInfo {
             ret.put("tags", new ArrayList(tags));
         }
         ret.put("indexed", indexed);
+        if (contentHash != null) {
+            ret.put("hash", contentHash);
+        }
+        if (chunked) {
+            ret.put("chunked", chunked);
+        }
+        if (packed) {
+            ret.put("packed", packed);
+        }
+        if (compressed) {
+            ret.put("compressed", compressed);
+            ret.put("size", size);
+        }
         return ret;
     }
 
@@ -146,6 +188,49 @@ public class FileInfo {
         return uuid;
     }
 
+    public FileInfo setUuid(UUID uuid) {
+        this.uuid = uuid;
+        return this;
+    }
+
+    // SHA-256 of the content, hex, null for directories or when it is not calculated
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    public void setContentHash(String contentHash) {
+        this.contentHash = contentHash;
+    }
+
+    public boolean isChunked() {
+        return chunked;
+    }
+
+    public void setChunked(boolean chunked) {
+        this.chunked = chunked;
+    }
+
+    public boolean isPacked() {
+        return packed;
+    }
+
+    public void setPacked(boolean packed) {
+        this.packed = packed;
+    }
+
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    public long getContentSize() {
+        return size;
+    }
+
+    public void setCompressed(boolean compressed, long size) {
+        this.compressed = compressed;
+        this.size = size;
+    }
+
     public boolean isIndexed() {
         return indexed;
     }
@@ -155,24 +240,40 @@ public class FileInfo {
     }
     
     
-    private long fileSize = -1;
-    public long getFileSize() {
-        if (fileSize < 0) {
-            fileSize = calculatePathSize(path);
+    // read once, a rename keeps it valid, see refreshMeta
+    private FileMetadata meta;
+    public FileMetadata getMeta() {
+        if (meta == null) {
+            refreshMeta();
         }
-        return fileSize;
+        return meta;
+    }
+    public FileMetadata refreshMeta() {
+        try {
+            meta = FileMetadata.read(path);
+        } catch (IOException e) {
+            e.printStackTrace();
+            meta = null;
+        }
+        return meta;
+    }
+    public long getFileSize() {
+        FileMetadata m = getMeta();
+        return (m == null) ? 0L : m.getTotalSize();
     }
     public long getFileSizeCalculated() {
-        fileSize = calculatePathSize(path);
-        return fileSize;
+        FileMetadata m = refreshMeta();
+        return (m == null) ? 0L : m.getTotalSize();
+    }
+    public boolean isDirectory() {
+        FileMetadata m = getMeta();
+        return (m != null) && m.isDirectory();
     }
-    public static long calculatePathSize(Path path) { //TODO
+    // one walk, the directory streams are closed
+    public static long calculatePathSize(Path path) {
         try {
-            if (Files.isDirectory(path)) {
-                return Files.list(path).mapToLong(FileInfo::calculatePathSize).sum();
-            } else
-            if (Files.isRegularFile(path)) {
-                return Files.size(path);
+            if (Files.exists(path)) {
+                return FileMetadata.treeSize(path);
             }
         } catch (IOException e) {
             e.printStackTrace();
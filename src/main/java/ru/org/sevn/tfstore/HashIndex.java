@@ -0,0 +1,165 @@
+/*
+ * Copyright 2017 Veronica Anokhina.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.org.sevn.tfstore;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// content hash -> the stored files with this content (relative to the store dir)
+// kept as an append-only log: "+hash path" adds a reference, "-hash path" removes it
+public class HashIndex {
+
+    private final File file;
+    private final HashMap<String, ArrayList<String>> locations = new HashMap<>();
+    private Writer out;
+
+    public HashIndex(File file) {
+        this.file = file;
+        read();
+    }
+
+    private void read() {
+        if (!file.exists()) {
+            return;
+        }
+        int removed = 0;
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                int sp = line.indexOf(' ');
+                if (line.length() < 2 || sp < 0) {
+                    continue;
+                }
+                String hash = line.substring(1, sp);
+                String path = line.substring(sp + 1);
+                if (line.charAt(0) == '+') {
+                    locations.computeIfAbsent(hash, k -> new ArrayList<>()).add(path);
+                } else {
+                    removeLocation(hash, path);
+                    removed++;
+                }
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(HashIndex.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        if (removed > 0) {
+            compact();
+        }
+    }
+
+    // rewrites the log without the removed references
+    public synchronized void compact() {
+        close();
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        try {
+            try (Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8))) {
+                for (Map.Entry<String, ArrayList<String>> e : locations.entrySet()) {
+                    for (String path : e.getValue()) {
+                        w.write("+" + e.getKey() + " " + path + "\n");
+                    }
+                }
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            Logger.getLogger(HashIndex.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    private boolean removeLocation(String hash, String path) {
+        ArrayList<String> l = locations.get(hash);
+        if (l != null && l.remove(path)) {
+            if (l.isEmpty()) {
+                locations.remove(hash);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    // the first stored file with the content, the missing ones are dropped
+    public synchronized String find(String hash, Predicate<String> exists) {
+        ArrayList<String> l = locations.get(hash);
+        while (l != null && !l.isEmpty()) {
+            String path = l.get(0);
+            if (exists.test(path)) {
+                return path;
+            }
+            remove(hash, path);
+            l = locations.get(hash);
+        }
+        return null;
+    }
+
+    public synchronized void add(String hash, String path) {
+        locations.computeIfAbsent(hash, k -> new ArrayList<>()).add(path);
+        append("+" + hash + " " + path);
+    }
+
+    public synchronized void remove(String hash, String path) {
+        if (removeLocation(hash, path)) {
+            append("-" + hash + " " + path);
+        }
+    }
+
+    // number of the stored files sharing the content
+    public synchronized int getRefs(String hash) {
+        ArrayList<String> l = locations.get(hash);
+        return (l == null) ? 0 : l.size();
+    }
+
+    public synchronized int size() {
+        return locations.size();
+    }
+
+    private void append(String line) {
+        try {
+            if (out == null) {
+                out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+            }
+            out.write(line + "\n");
+            out.flush();
+        } catch (IOException ex) {
+            Logger.getLogger(HashIndex.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    public synchronized void close() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException ex) {
+                Logger.getLogger(HashIndex.class.getName()).log(Level.SEVERE, null, ex);
+            }
+            out = null;
+        }
+    }
+}
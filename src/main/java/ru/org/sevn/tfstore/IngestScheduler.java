@@ -0,0 +1,178 @@
+/*
+ * Copyright 2017 Veronica Anokhina.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.org.sevn.tfstore;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// weighted fair queueing of the files over the lanes (one lane per store)
+// the lane with the least virtual time runs next, a file advances it by size / weight,
+// so a lane with small files or a bigger weight is not stuck behind a bulk one
+public class IngestScheduler {
+
+    // a file costs at least this, so empty files are not free
+    public static long MIN_COST = 64 * 1024L;
+
+    public static class Lane {
+        private final String name;
+        private int weight = 1;
+        private int limit;
+        private int running;
+        private double pass;
+        private long files;
+        private long bytes;
+        private final ArrayDeque<Task> queue = new ArrayDeque<>();
+
+        private Lane(String name, int limit) {
+            this.name = name;
+            this.limit = limit;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getWeight() {
+            return weight;
+        }
+
+        public int getLimit() {
+            return limit;
+        }
+
+        @Override
+        public String toString() {
+            return name + ": weight " + weight + ", limit " + limit + ", " + files + " files, " + bytes + " bytes";
+        }
+    }
+
+    private static class Task {
+        private final long size;
+        private final long cost;
+        private final Runnable runnable;
+
+        Task(long size, Runnable runnable) {
+            this.size = size;
+            this.cost = Math.max(MIN_COST, size);
+            this.runnable = runnable;
+        }
+    }
+
+    private final int threads;
+    private final int maxQueued;
+    private final ExecutorService workers;
+    private final Map<String, Lane> lanes = new LinkedHashMap<>();
+    private double virtualTime;
+    private int active;
+    private int pending;
+
+    public IngestScheduler(int threads) {
+        this.threads = threads;
+        this.maxQueued = threads * 64;
+        this.workers = Executors.newFixedThreadPool(threads);
+    }
+
+    // limit - max files of the lane processed at once
+    public synchronized void setLane(String name, int weight, int limit) {
+        Lane lane = getLane(name);
+        lane.weight = Math.max(1, weight);
+        lane.limit = Math.max(1, limit);
+        dispatch();
+    }
+
+    private Lane getLane(String name) {
+        Lane lane = lanes.get(name);
+        if (lane == null) {
+            lane = new Lane(name, threads);
+            lanes.put(name, lane);
+        }
+        return lane;
+    }
+
+    // waits while too many files are queued
+    public synchronized void submit(String laneName, long size, Runnable runnable) throws InterruptedException {
+        while (pending - active >= maxQueued) {
+            wait();
+        }
+        Lane lane = getLane(laneName);
+        if (lane.queue.isEmpty() && lane.running == 0) {
+            // an idle lane does not get the credit for the time it was idle
+            lane.pass = Math.max(lane.pass, virtualTime);
+        }
+        lane.queue.add(new Task(size, runnable));
+        pending++;
+        dispatch();
+    }
+
+    private void dispatch() {
+        while (active < threads) {
+            Lane best = null;
+            for (Lane lane : lanes.values()) {
+                if (!lane.queue.isEmpty() && lane.running < lane.limit && (best == null || lane.pass < best.pass)) {
+                    best = lane;
+                }
+            }
+            if (best == null) {
+                return;
+            }
+            Lane lane = best;
+            Task task = lane.queue.poll();
+            lane.running++;
+            active++;
+            virtualTime = lane.pass;
+            lane.pass += (double)task.cost / lane.weight;
+            workers.execute(() -> {
+                try {
+                    task.runnable.run();
+                } catch (Exception ex) {
+                    Logger.getLogger(IngestScheduler.class.getName()).log(Level.SEVERE, null, ex);
+                } finally {
+                    done(lane, task);
+                }
+            });
+        }
+    }
+
+    private synchronized void done(Lane lane, Task task) {
+        lane.running--;
+        lane.files++;
+        lane.bytes += task.size;
+        active--;
+        pending--;
+        dispatch();
+        notifyAll();
+    }
+
+    public synchronized void awaitIdle() throws InterruptedException {
+        while (pending > 0) {
+            wait();
+        }
+    }
+
+    public void shutdown() {
+        workers.shutdown();
+    }
+
+    public synchronized Collection<Lane> getLanes() {
+        return lanes.values();
+    }
+}
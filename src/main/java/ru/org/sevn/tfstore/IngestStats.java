@@ -0,0 +1,69 @@
+/*
+ * Copyright 2017 Veronica Anokhina.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.org.sevn.tfstore;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// files/sec counters of one ingest source
+public class IngestStats {
+    private final String name;
+    private final long started = System.currentTimeMillis();
+    private final AtomicLong lastDone = new AtomicLong(started);
+    private final AtomicLong files = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+
+    public IngestStats(String name) {
+        this.name = name;
+    }
+
+    public void done(boolean isError) {
+        files.incrementAndGet();
+        if (isError) {
+            errors.incrementAndGet();
+        }
+        lastDone.set(System.currentTimeMillis());
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getFiles() {
+        return files.get();
+    }
+
+    public long getErrors() {
+        return errors.get();
+    }
+
+    public long getMillis() {
+        return lastDone.get() - started;
+    }
+
+    public double getFilesPerSecond() {
+        long ms = getMillis();
+        if (ms <= 0) {
+            return files.get();
+        }
+        return files.get() * 1000.0 / ms;
+    }
+
+    @Override
+    public String toString() {
+        return name + ": " + getFiles() + " files (" + getErrors() + " errors) in " + getMillis() + " ms, "
+                + String.format("%.1f", getFilesPerSecond()) + " files/s";
+    }
+}
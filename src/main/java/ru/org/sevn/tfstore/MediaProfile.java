@@ -0,0 +1,141 @@
+/*
+ * Copyright 2017 Veronica Anokhina.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.org.sevn.tfstore;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// the disc a part is burned to: the part size is what the files take there, not their length
+// a file takes whole blocks and a file entry, a directory takes a file entry and its blocks,
+// the reserve is for the volume structures (UDF: the anchors, the metadata partition and its mirror)
+public class MediaProfile {
+
+    // a stored file is in <3>/<4>/<4>/<rest>/, see AbstractStoreFileManager.getPathFromUUID
+    public static final int UUID_DIRS = 4;
+
+    public static final MediaProfile BD25 = new MediaProfile("bd25", StoreFileManager.MAX_SIZE + 1, 2048, 2048, 4096, 64L * 1024 * 1024);
+    public static final MediaProfile BD50 = new MediaProfile("bd50", 50050629632L, 2048, 2048, 4096, 128L * 1024 * 1024);
+    public static final MediaProfile DVD = new MediaProfile("dvd", 4700372992L, 2048, 2048, 4096, 16L * 1024 * 1024);
+    public static final MediaProfile DVD_DL = new MediaProfile("dvd-dl", 8543666176L, 2048, 2048, 4096, 32L * 1024 * 1024);
+
+    private final String name;
+    private final long capacity;
+    private final int blockSize;
+    private final long fileOverhead;
+    private final long dirOverhead;
+    private final long reserve;
+
+    public MediaProfile(String name, long capacity, int blockSize, long fileOverhead, long dirOverhead, long reserve) {
+        this.name = name;
+        this.capacity = capacity;
+        this.blockSize = Math.max(1, blockSize);
+        this.fileOverhead = fileOverhead;
+        this.dirOverhead = dirOverhead;
+        this.reserve = reserve;
+    }
+
+    // null if there is no such name
+    public static MediaProfile get(String name) {
+        for (MediaProfile mp : new MediaProfile[] { BD25, BD50, DVD, DVD_DL }) {
+            if (mp.name.equalsIgnoreCase(name)) {
+                return mp;
+            }
+        }
+        return null;
+    }
+
+    // what the parts may take
+    public long getUsable() {
+        return capacity - reserve;
+    }
+
+    public long roundUp(long bytes) {
+        return (bytes + blockSize - 1) / blockSize * blockSize;
+    }
+
+    public long fileCost(long bytes) {
+        return roundUp(bytes) + fileOverhead;
+    }
+
+    // a file stored in its own uuid directories
+    public long itemCost(long bytes) {
+        return fileCost(bytes) + UUID_DIRS * dirOverhead;
+    }
+
+    // what the tree takes on the disc
+    public long measure(Path path) {
+        long[] ret = new long[1];
+        try {
+            Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                    ret[0] += dirOverhead;
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    ret[0] += fileCost(attrs.size());
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
+                    Logger.getLogger(MediaProfile.class.getName()).log(Level.SEVERE, null, exc);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException ex) {
+            Logger.getLogger(MediaProfile.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        return ret[0];
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public long getFileOverhead() {
+        return fileOverhead;
+    }
+
+    public long getDirOverhead() {
+        return dirOverhead;
+    }
+
+    public long getReserve() {
+        return reserve;
+    }
+
+    @Override
+    public String toString() {
+        return name + " " + capacity + " block " + blockSize + " file " + fileOverhead + " dir " + dirOverhead + " reserve " + reserve;
+    }
+}
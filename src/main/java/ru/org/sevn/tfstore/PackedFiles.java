@@ -0,0 +1,287 @@
+/*
+ * Copyright 2017 Veronica Anokhina.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.org.sevn.tfstore;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.solr.common.util.ContentStreamBase;
+import ru.org.sevn.common.util.FileTransfer;
+
+// the small files of the part pN are appended to pN/pack.seg, there is no directory per file
+// pN.pack next to pN.info is the offset index: a line per file: offset length mtime sha256 path,
+// the path is the one the file would have in pN (with / separators), a removed file is "- - - - path"
+// the space of the removed files is kept, the part is closed anyway
+public class PackedFiles {
+
+    public static final String SEGMENT = "pack.seg";
+    public static final String PART_PACK = ".pack";
+    private static final String REMOVED = "-";
+
+    public static class Entry {
+        private final String path;
+        private final long offset;
+        private final long length;
+        private final long mtime;
+        private final String hash;
+
+        public Entry(String path, long offset, long length, long mtime, String hash) {
+            this.path = path;
+            this.offset = offset;
+            this.length = length;
+            this.mtime = mtime;
+            this.hash = hash;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        public long getMtime() {
+            return mtime;
+        }
+
+        public String getHash() {
+            return hash;
+        }
+
+        @Override
+        public String toString() {
+            return offset + " " + length + " " + mtime + " " + hash + " " + path;
+        }
+    }
+
+    private final File partDir;
+    private final File segment;
+    private final File indexFile;
+    // read at the first use
+    private TreeMap<String, Entry> entries;
+    // kept open while the part takes files, see close
+    private FileChannel out;
+    private Writer indexOut;
+
+    public PackedFiles(File partDir) {
+        this.partDir = partDir;
+        this.segment = new File(partDir, SEGMENT);
+        this.indexFile = new File(partDir.getParentFile(), partDir.getName() + PART_PACK);
+    }
+
+    public File getSegment() {
+        return segment;
+    }
+
+    public File getIndexFile() {
+        return indexFile;
+    }
+
+    public String toRelative(Path path) {
+        return partDir.toPath().toAbsolutePath().relativize(path.toAbsolutePath()).toString().replace(File.separatorChar, '/');
+    }
+
+    private TreeMap<String, Entry> getEntries() {
+        if (entries == null) {
+            entries = new TreeMap<>();
+            if (indexFile.exists()) {
+                try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), StandardCharsets.UTF_8))) {
+                    String line;
+                    while ((line = in.readLine()) != null) {
+                        String[] l = line.split(" ", 5);
+                        if (l.length < 5) {
+                            continue;
+                        }
+                        if (REMOVED.equals(l[0])) {
+                            entries.remove(l[4]);
+                        } else {
+                            entries.put(l[4], new Entry(l[4], Long.parseLong(l[0]), Long.parseLong(l[1]), Long.parseLong(l[2]), l[3]));
+                        }
+                    }
+                } catch (IOException | NumberFormatException ex) {
+                    Logger.getLogger(PackedFiles.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            }
+        }
+        return entries;
+    }
+
+    public synchronized Entry get(String path) {
+        return getEntries().get(path);
+    }
+
+    public synchronized Collection<Entry> list() {
+        return new ArrayList<>(getEntries().values());
+    }
+
+    // the content of src goes to the end of the segment, one write, the index line is appended after it
+    public synchronized Entry append(Path src, String path, long mtime) throws IOException {
+        getEntries();
+        byte[] bytes = Files.readAllBytes(src);
+        MessageDigest md = FileTransfer.newDigest();
+        md.update(bytes);
+        if (out == null) {
+            partDir.mkdirs();
+            out = FileChannel.open(segment.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        }
+        long offset = out.size();
+        ByteBuffer buf = ByteBuffer.wrap(bytes);
+        long pos = offset;
+        while (buf.hasRemaining()) {
+            pos += out.write(buf, pos);
+        }
+        Entry e = new Entry(path, offset, bytes.length, mtime, FileTransfer.toHex(md.digest()));
+        appendIndex(e.toString());
+        entries.put(path, e);
+        return e;
+    }
+
+    public synchronized boolean remove(String path) throws IOException {
+        if (getEntries().remove(path) == null) {
+            return false;
+        }
+        appendIndex(REMOVED + " " + REMOVED + " " + REMOVED + " " + REMOVED + " " + path);
+        return true;
+    }
+
+    private void appendIndex(String line) throws IOException {
+        if (indexOut == null) {
+            indexOut = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(indexFile, true), StandardCharsets.UTF_8));
+        }
+        indexOut.write(line);
+        indexOut.write("\n");
+        indexOut.flush();
+    }
+
+    // the range of the segment, the channel is closed with the stream
+    public InputStream open(Entry e) throws IOException {
+        FileChannel ch = FileChannel.open(segment.toPath(), StandardOpenOption.READ);
+        ch.position(e.offset);
+        InputStream in = Channels.newInputStream(ch);
+        return new InputStream() {
+            private long left = e.length;
+
+            @Override
+            public int read() throws IOException {
+                if (left <= 0) {
+                    return -1;
+                }
+                int r = in.read();
+                if (r >= 0) {
+                    left--;
+                }
+                return r;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (left <= 0) {
+                    return -1;
+                }
+                int r = in.read(b, off, (int) Math.min(len, left));
+                if (r > 0) {
+                    left -= r;
+                }
+                return r;
+            }
+
+            @Override
+            public void close() throws IOException {
+                in.close();
+            }
+        };
+    }
+
+    public ContentStreamBase toContentStream(Entry e) {
+        ContentStreamBase ret = new ContentStreamBase() {
+            @Override
+            public InputStream getStream() throws IOException {
+                return open(e);
+            }
+        };
+        String name = e.path.substring(e.path.lastIndexOf('/') + 1);
+        ret.setName(name);
+        ret.setSize(e.length);
+        ret.setSourceInfo(name);
+        return ret;
+    }
+
+    // the entries which are not in the segment or have another checksum
+    public List<String> verify() throws IOException {
+        ArrayList<String> ret = new ArrayList<>();
+        long size = segment.length();
+        byte[] buf = new byte[64 * 1024];
+        for (Entry e : list()) {
+            if (e.offset + e.length > size) {
+                ret.add("packed missing " + e.path);
+                continue;
+            }
+            MessageDigest md = FileTransfer.newDigest();
+            try (InputStream in = open(e)) {
+                int r;
+                while ((r = in.read(buf)) >= 0) {
+                    md.update(buf, 0, r);
+                }
+            }
+            String hash = FileTransfer.toHex(md.digest());
+            if (!hash.equals(e.hash)) {
+                ret.add("packed checksum " + e.path + " " + hash + " != " + e.hash);
+            }
+        }
+        return ret;
+    }
+
+    public synchronized void close() {
+        try {
+            if (out != null) {
+                out.close();
+            }
+            if (indexOut != null) {
+                indexOut.close();
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(PackedFiles.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        out = null;
+        indexOut = null;
+    }
+}
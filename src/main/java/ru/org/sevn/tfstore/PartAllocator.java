@@ -0,0 +1,199 @@
+/*
+ * Copyright 2017 Veronica Anokhina.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.org.sevn.tfstore;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+// the open parts by their free space, a file takes a part where size + file < capacity
+// BEST_FIT - the part with the least room left for the file: a TreeSet by (free, num)
+// FIRST_FIT_DECREASING - the part with the lowest number that fits: a max-free segment tree in the order of the numbers,
+//   it packs well when the caller adds the files in the decreasing size order
+// the size of an open part is changed here only, so the order stays valid, every change is O(log n)
+public class PartAllocator {
+
+    public enum Policy {
+        BEST_FIT, FIRST_FIT_DECREASING
+    }
+
+    private final long capacity;
+    private Policy policy = Policy.BEST_FIT;
+    private final TreeSet<PartInfo> byFree;
+    // the segment tree: the parts in the order they are added (the numbers grow), a closed one is a hole
+    private final ArrayList<PartInfo> slots = new ArrayList<>();
+    private final HashMap<Integer, Integer> slotOf = new HashMap<>();
+    private long[] tree = new long[2];
+    private int leaves = 1;
+    private int holes;
+
+    public PartAllocator(long capacity) {
+        this.capacity = capacity;
+        this.byFree = new TreeSet<>(Comparator.comparingLong((PartInfo pi) -> capacity - pi.getSize()).thenComparingInt(PartInfo::getNum));
+    }
+
+    private long free(PartInfo pi) {
+        return capacity - pi.getSize();
+    }
+
+    public synchronized void add(PartInfo pi) {
+        if (slotOf.containsKey(pi.getNum())) {
+            return;
+        }
+        byFree.add(pi);
+        slotOf.put(pi.getNum(), slots.size());
+        slots.add(pi);
+        if (slots.size() > leaves) {
+            rebuild();
+        } else {
+            update(slots.size() - 1, free(pi));
+        }
+    }
+
+    // the part is closed
+    public synchronized void remove(PartInfo pi) {
+        Integer slot = slotOf.remove(pi.getNum());
+        if (slot == null) {
+            return;
+        }
+        byFree.remove(pi);
+        slots.set(slot, null);
+        update(slot, -1);
+        holes++;
+        if (holes > slots.size() / 2) {
+            rebuild();
+        }
+    }
+
+    // pi.incrSize for an open part, a closed one is just counted
+    public synchronized void resize(PartInfo pi, long delta) {
+        Integer slot = slotOf.get(pi.getNum());
+        if (slot == null) {
+            pi.incrSize(delta);
+            return;
+        }
+        byFree.remove(pi);
+        pi.incrSize(delta);
+        byFree.add(pi);
+        update(slot, free(pi));
+    }
+
+    // the part has room for the size
+    public synchronized boolean fits(PartInfo pi, long size) {
+        return free(pi) > size;
+    }
+
+    // null if no open part has room
+    public synchronized PartInfo select(long size) {
+        if (policy == Policy.BEST_FIT) {
+            for (PartInfo pi : byFree.tailSet(probe(size + 1), true)) {
+                return pi;
+            }
+            return null;
+        }
+        if (tree[1] <= size) {
+            return null;
+        }
+        int i = 1;
+        while (i < leaves) {
+            i = (tree[2 * i] > size) ? 2 * i : 2 * i + 1;
+        }
+        return slots.get(i - leaves);
+    }
+
+    // a part with the free space and the lowest number, to start the tail set from
+    private PartInfo probe(long free) {
+        PartInfo ret = new PartInfo(null);
+        ret.setNum(Integer.MIN_VALUE);
+        ret.setSize(capacity - free);
+        return ret;
+    }
+
+    private void update(int slot, long value) {
+        int i = slot + leaves;
+        tree[i] = value;
+        for (i /= 2; i >= 1; i /= 2) {
+            tree[i] = Math.max(tree[2 * i], tree[2 * i + 1]);
+        }
+    }
+
+    private void rebuild() {
+        ArrayList<PartInfo> open = new ArrayList<>();
+        for (PartInfo pi : slots) {
+            if (pi != null) {
+                open.add(pi);
+            }
+        }
+        slots.clear();
+        slotOf.clear();
+        holes = 0;
+        leaves = 1;
+        while (leaves < open.size() * 2) {
+            leaves *= 2;
+        }
+        tree = new long[2 * leaves];
+        java.util.Arrays.fill(tree, -1);
+        for (PartInfo pi : open) {
+            slotOf.put(pi.getNum(), slots.size());
+            slots.add(pi);
+            tree[leaves + slots.size() - 1] = free(pi);
+        }
+        for (int i = leaves - 1; i >= 1; i--) {
+            tree[i] = Math.max(tree[2 * i], tree[2 * i + 1]);
+        }
+    }
+
+    public synchronized Policy getPolicy() {
+        return policy;
+    }
+
+    public synchronized void setPolicy(Policy policy) {
+        this.policy = policy;
+    }
+
+    public synchronized int size() {
+        return byFree.size();
+    }
+
+    // part number -> size / capacity of the open parts
+    public synchronized Map<Integer, Double> getFillRatios() {
+        TreeMap<Integer, Double> ret = new TreeMap<>();
+        for (PartInfo pi : byFree) {
+            ret.put(pi.getNum(), (double) pi.getSize() / capacity);
+        }
+        return ret;
+    }
+
+    // the used share of the open parts, 1 - all are full
+    public synchronized double getFill() {
+        if (byFree.isEmpty()) {
+            return 0;
+        }
+        long used = 0;
+        for (PartInfo pi : byFree) {
+            used += pi.getSize();
+        }
+        return (double) used / ((double) capacity * byFree.size());
+    }
+
+    @Override
+    public synchronized String toString() {
+        return policy + " " + byFree.size() + " parts, fill " + String.format("%.3f", getFill());
+    }
+}
@@ -28,6 +28,8 @@ public class PartInfo {
     private Date backUpDate;
     private long size;
     private int num;
+    // the imported files are there, the part has links only
+    private String source;
     private ArrayList<FileInfo> files2index = new ArrayList<>(); //TODO use set
 
     private final java.io.File root;
@@ -43,6 +45,9 @@ public class PartInfo {
         }
         ret.put("size", size);
         ret.put("num", num);
+        if (source != null) {
+            ret.put("source", source);
+        }
         
         ret.put("files2index", files2index.stream().map(e -> e.getProperties()).collect(Collectors.toList()));
         return ret;
@@ -56,6 +61,9 @@ public class PartInfo {
         if (m.containsKey("num")) {
             pi.num = Integer.parseInt(m.get("num").toString());
         }
+        if (m.containsKey("source")) {
+            pi.source = m.get("source").toString();
+        }
         if (m.containsKey("backUpDate")) {
             pi.backUpDate = new Date(Long.parseLong(m.get("backUpDate").toString()));
         }
@@ -87,6 +95,14 @@ public class PartInfo {
         this.size += size;
     }
     
+    public String getSource() {
+        return source;
+    }
+
+    public void setSource(String source) {
+        this.source = source;
+    }
+
     public int getNum() {
         return num;
     }
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2017 Veronica Anokhina.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.org.sevn.tfstore;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.Map;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.noggit.JSONUtil;
+import org.noggit.ObjectBuilder;
+
+// the changes of pN.info since it was written, pN.journal next to it, a line per change:
+// add <size> <json of the FileInfo> | indexed <size> <uuid> | backup <size> <millis> | size <size>
+// <size> is the part size after the change, pN.info + the lines = the part, see replay
+// the journal is emptied when pN.info is written again (the snapshot), see AbstractStoreFileManager.compact
+public class PartJournal {
+
+    public static final String PART_JOURNAL = ".journal";
+
+    private final File file;
+    private Writer out;
+    private int records = -1;
+
+    public PartJournal(File partDir) {
+        this.file = new File(partDir.getParentFile(), partDir.getName() + PART_JOURNAL);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public synchronized void add(PartInfo pi, FileInfo fi) throws IOException {
+        append("add " + pi.getSize() + " " + JSONUtil.toJSON(fi.getProperties(), -1));
+    }
+
+    public synchronized void indexed(PartInfo pi, FileInfo fi) throws IOException {
+        append("indexed " + pi.getSize() + " " + fi.getUuid());
+    }
+
+    public synchronized void backUp(PartInfo pi) throws IOException {
+        append("backup " + pi.getSize() + " " + pi.getBackUpDate().getTime());
+    }
+
+    public synchronized void size(PartInfo pi) throws IOException {
+        append("size " + pi.getSize());
+    }
+
+    private void append(String line) throws IOException {
+        if (out == null) {
+            getRecords();
+            out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+        }
+        out.write(line);
+        out.write("\n");
+        out.flush();
+        records++;
+    }
+
+    // the lines since the snapshot
+    public synchronized int getRecords() {
+        if (records < 0) {
+            records = 0;
+            if (file.exists()) {
+                try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+                    while (in.readLine() != null) {
+                        records++;
+                    }
+                } catch (IOException ex) {
+                    Logger.getLogger(PartJournal.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            }
+        }
+        return records;
+    }
+
+    // the snapshot has the changes
+    public synchronized void reset() throws IOException {
+        close();
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Can't delete " + file);
+        }
+        records = 0;
+    }
+
+    public synchronized void close() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException ex) {
+                Logger.getLogger(PartJournal.class.getName()).log(Level.SEVERE, null, ex);
+            }
+            out = null;
+        }
+    }
+
+    // the lines are applied to the part read from pN.info, a line may be applied twice
+    // (the snapshot was written, the journal was not deleted), a cut last line is skipped
+    // returns false if there is no journal
+    public boolean replay(PartInfo pi, File root) {
+        if (!file.exists()) {
+            return false;
+        }
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] l = line.split(" ", 3);
+                try {
+                    switch (l[0]) {
+                        case "add":
+                            FileInfo fi = FileInfo.fromMap((Map) ObjectBuilder.fromJSON(l[2]), root.toPath());
+                            pi.removeFileInfo(fi);
+                            pi.addFileInfo(fi);
+                            break;
+                        case "indexed":
+                            UUID uuid = UUID.fromString(l[2]);
+                            for (FileInfo f : pi.getFileInfoList()) {
+                                if (uuid.equals(f.getUuid())) {
+                                    pi.removeFileInfo(f);
+                                }
+                            }
+                            break;
+                        case "backup":
+                            pi.setBackUpDate(new Date(Long.parseLong(l[2])));
+                            break;
+                        case "size":
+                            break;
+                        default:
+                            throw new IOException("Wrong record " + l[0]);
+                    }
+                    pi.setSize(Long.parseLong(l[1]));
+                } catch (IOException | RuntimeException ex) {
+                    Logger.getLogger(PartJournal.class.getName()).log(Level.WARNING, "Skipped " + file + ": " + line + ": " + ex);
+                }
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(PartJournal.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,291 @@
+/*
+ * Copyright 2017 Veronica Anokhina.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.org.sevn.tfstore;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import ru.org.sevn.common.util.FileTransfer;
+
+// what the part pN contains, pN.manifest next to pN.info
+// a line per regular file: sha256 size mtime path, the path is relative to pN with / separators
+// the ingest appends the lines, a removed file is "- - - path", compact() writes them sorted by the path
+public class PartManifest {
+
+    public static String PART_MANIFEST = ".manifest";
+    private static final String REMOVED = "-";
+
+    public static class Entry {
+        private final String path;
+        private final long size;
+        private final long mtime;
+        private final String hash;
+
+        public Entry(String path, long size, long mtime, String hash) {
+            this.path = path;
+            this.size = size;
+            this.mtime = mtime;
+            this.hash = hash;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getMtime() {
+            return mtime;
+        }
+
+        public String getHash() {
+            return hash;
+        }
+
+        @Override
+        public String toString() {
+            return hash + " " + size + " " + mtime + " " + path;
+        }
+    }
+
+    private final File partDir;
+    private final File file;
+    // read at the first use
+    private TreeMap<String, Entry> entries;
+    private int removed;
+
+    public PartManifest(File partDir) {
+        this.partDir = partDir;
+        this.file = new File(partDir.getParentFile(), partDir.getName() + PART_MANIFEST);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public String toRelative(Path path) {
+        return partDir.toPath().toAbsolutePath().relativize(path.toAbsolutePath()).toString().replace(File.separatorChar, '/');
+    }
+
+    private TreeMap<String, Entry> getEntries() {
+        if (entries == null) {
+            entries = new TreeMap<>();
+            if (file.exists()) {
+                try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+                    String line;
+                    while ((line = in.readLine()) != null) {
+                        String[] l = line.split(" ", 4);
+                        if (l.length < 4) {
+                            continue;
+                        }
+                        if (REMOVED.equals(l[0])) {
+                            removePath(l[3]);
+                            removed++;
+                        } else {
+                            entries.put(l[3], new Entry(l[3], Long.parseLong(l[1]), Long.parseLong(l[2]), l[0]));
+                        }
+                    }
+                } catch (IOException | NumberFormatException ex) {
+                    Logger.getLogger(PartManifest.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            }
+        }
+        return entries;
+    }
+
+    // the path and everything under it
+    private void removePath(String path) {
+        entries.remove(path);
+        entries.subMap(path + "/", path + "/\uffff").clear();
+    }
+
+    public synchronized Collection<Entry> list() {
+        return new ArrayList<>(getEntries().values());
+    }
+
+    public synchronized Entry get(String path) {
+        return getEntries().get(path);
+    }
+
+    public synchronized void add(Entry e) throws IOException {
+        getEntries().put(e.path, e);
+        append(e + "\n");
+    }
+
+    public synchronized void add(Collection<Entry> added) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (Entry e : added) {
+            getEntries().put(e.path, e);
+            sb.append(e).append("\n");
+        }
+        append(sb.toString());
+    }
+
+    public synchronized void remove(String path) throws IOException {
+        getEntries();
+        removePath(path);
+        removed++;
+        append(REMOVED + " " + REMOVED + " " + REMOVED + " " + path + "\n");
+    }
+
+    private void append(String lines) throws IOException {
+        if (lines.isEmpty()) {
+            return;
+        }
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8))) {
+            out.write(lines);
+        }
+    }
+
+    // sorted, without the removed files
+    public synchronized void compact() throws IOException {
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8))) {
+            for (Entry e : getEntries().values()) {
+                out.write(e.toString());
+                out.write("\n");
+            }
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        removed = 0;
+    }
+
+    public synchronized int getRemoved() {
+        return removed;
+    }
+
+    public static List<Path> listFiles(Path path) throws IOException {
+        ArrayList<Path> ret = new ArrayList<>();
+        Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (attrs.isRegularFile()) {
+                    ret.add(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return ret;
+    }
+
+    // the entries of the stored file or of all the files of the stored directory
+    // known - the checksum of a single file if it is calculated already
+    public List<Entry> makeEntries(Path stored, String known, FileTransfer transfer) throws IOException {
+        ArrayList<Entry> ret = new ArrayList<>();
+        if (known != null && Files.isRegularFile(stored)) {
+            ret.add(makeEntry(stored, known));
+            return ret;
+        }
+        for (Map.Entry<Path, byte[]> e : transfer.digestAll(listFiles(stored)).entrySet()) {
+            ret.add(makeEntry(e.getKey(), FileTransfer.toHex(e.getValue())));
+        }
+        return ret;
+    }
+
+    private Entry makeEntry(Path path, String hash) throws IOException {
+        BasicFileAttributes attr = Files.readAttributes(path, BasicFileAttributes.class);
+        return new Entry(toRelative(path), attr.size(), attr.lastModifiedTime().toMillis(), hash);
+    }
+
+    // for the parts stored before the manifests, the whole tree is hashed
+    public synchronized void build(FileTransfer transfer) throws IOException {
+        entries = new TreeMap<>();
+        if (partDir.isDirectory()) {
+            for (Entry e : makeEntries(partDir.toPath(), null, transfer)) {
+                entries.put(e.path, e);
+            }
+        }
+        compact();
+    }
+
+    // the differences between the part and the manifest, empty if the part is fine
+    // content - the checksums are calculated too, else only the sizes and mtimes are compared
+    public List<String> verify(FileTransfer transfer, boolean content) throws IOException {
+        return verify(transfer, content, Collections.emptySet());
+    }
+
+    // notListed - the files of the part that are not expected in the manifest yet
+    public List<String> verify(FileTransfer transfer, boolean content, Set<String> notListed) throws IOException {
+        Collection<Entry> expected = list();
+        LinkedHashMap<String, Path> found = new LinkedHashMap<>();
+        if (partDir.isDirectory()) {
+            for (Path p : listFiles(partDir.toPath())) {
+                String rel = toRelative(p);
+                if (!notListed.contains(rel) || getEntries().containsKey(rel)) {
+                    found.put(rel, p);
+                }
+            }
+        }
+        ArrayList<String> ret = new ArrayList<>();
+        ArrayList<Path> toHash = new ArrayList<>();
+        ArrayList<Entry> toHashEntries = new ArrayList<>();
+        for (Entry e : expected) {
+            Path p = found.remove(e.path);
+            if (p == null) {
+                ret.add("missing " + e.path);
+                continue;
+            }
+            BasicFileAttributes attr = Files.readAttributes(p, BasicFileAttributes.class);
+            if (attr.size() != e.size) {
+                ret.add("size " + e.path + " " + attr.size() + " != " + e.size);
+            } else if (attr.lastModifiedTime().toMillis() != e.mtime) {
+                ret.add("mtime " + e.path + " " + attr.lastModifiedTime().toMillis() + " != " + e.mtime);
+            } else if (content) {
+                toHash.add(p);
+                toHashEntries.add(e);
+            }
+        }
+        for (String path : found.keySet()) {
+            ret.add("unlisted " + path);
+        }
+        if (!toHash.isEmpty()) {
+            Map<Path, byte[]> hashes = transfer.digestAll(toHash);
+            for (int i = 0; i < toHash.size(); i++) {
+                Entry e = toHashEntries.get(i);
+                String hash = FileTransfer.toHex(hashes.get(toHash.get(i)));
+                if (!hash.equals(e.hash)) {
+                    ret.add("checksum " + e.path + " " + hash + " != " + e.hash);
+                }
+            }
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,314 @@
+/*
+ * Copyright 2017 Veronica Anokhina.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.org.sevn.tfstore;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import ru.org.sevn.common.util.IOUtil;
+
+// the items of error/SOLR and error/FATAL are moved back to their place in in/ and processed again
+// the delay doubles after every failure, an item failed maxAttempts times goes to error/givenup/<ERR>/
+// the state is kept in error/.retry: attempts next-millis path (relative to error/<ERR>)
+// the other errors (EXISTS, TOO_BIG) are left where they are
+public class RetryProcessor implements Runnable {
+
+    public static final String DIR_GIVEN_UP = "givenup";
+    public static final String[] RETRY_ERRORS = { StoreFileManager.Errors.SOLR.name(), StoreFileManager.Errors.FATAL.name() };
+
+    private static class State {
+        private int attempts;
+        private long next;
+
+        State(int attempts, long next) {
+            this.attempts = attempts;
+            this.next = next;
+        }
+    }
+
+    private final StoreDistribute storeDistribute;
+    private final File errorDir;
+    private final File stateFile;
+    // false - the round is skipped without counting the attempts, e.g. while Solr is down
+    private final BooleanSupplier ready;
+    private final Map<String, State> states = new HashMap<>();
+    private final IngestStats stats = new IngestStats("retry");
+    private long givenUp;
+
+    private long periodMillis = 60 * 1000L;
+    private long initialDelayMillis = 60 * 1000L;
+    private long maxDelayMillis = 6 * 60 * 60 * 1000L;
+    private int maxAttempts = 10;
+    // max items retried in a round
+    private int budget = 100;
+
+    private ScheduledExecutorService executor;
+
+    public RetryProcessor(StoreDistribute storeDistribute, BooleanSupplier ready) {
+        this.storeDistribute = storeDistribute;
+        this.errorDir = storeDistribute.getErrorDir();
+        this.stateFile = new File(errorDir, ".retry");
+        this.ready = ready;
+        read();
+    }
+
+    public synchronized void start() {
+        if (executor == null) {
+            executor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "tfstore-retry");
+                t.setDaemon(true);
+                return t;
+            });
+            executor.scheduleWithFixedDelay(this, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public synchronized void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    public synchronized boolean isRunning() {
+        return executor != null;
+    }
+
+    @Override
+    public void run() {
+        try {
+            retry();
+        } catch (Exception ex) {
+            Logger.getLogger(RetryProcessor.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    // one round: at most budget items which are due
+    public synchronized void retry() {
+        if (!ready.getAsBoolean()) {
+            System.out.println("retry>skipped, not ready");
+            return;
+        }
+        long now = System.currentTimeMillis();
+        HashMap<String, File> found = new HashMap<>();
+        for (String err : RETRY_ERRORS) {
+            File dir = new File(errorDir, err);
+            if (dir.isDirectory()) {
+                IOUtil.forEachFile(dir, src -> collect(dir, src, found));
+            }
+        }
+        states.keySet().retainAll(found.keySet());
+        int left = budget;
+        long started = System.currentTimeMillis();
+        int done = 0;
+        for (Map.Entry<String, File> e : found.entrySet()) {
+            State st = states.get(e.getKey());
+            if (st == null) {
+                // a new error waits the first delay
+                states.put(e.getKey(), new State(0, now + initialDelayMillis));
+                continue;
+            }
+            if (st.next > now || left <= 0) {
+                continue;
+            }
+            left--;
+            done++;
+            boolean ok = retry(e.getKey(), e.getValue(), st);
+            stats.done(!ok);
+        }
+        storeDistribute.flush();
+        write();
+        if (done > 0) {
+            System.out.println("retry>" + done + " items in " + (System.currentTimeMillis() - started) + " ms, " + stats + ", given up " + givenUp + ", waiting " + states.size());
+        }
+    }
+
+    // error/<ERR>/<source>/... the containers are walked into like in in/
+    // an entry parked before the source was in the layout (error/<ERR>/... relative to the source) gets its source back
+    private void collect(File errDir, File f, Map<String, File> found) {
+        Path rel = errDir.toPath().relativize(f.toPath());
+        String first = rel.getName(0).toString();
+        if (!storeDistribute.isSource(first)) {
+            rel = Paths.get(storeDistribute.getLegacySource(first)).resolve(rel);
+        }
+        if (f.isDirectory() && storeDistribute.isContainer(rel)) {
+            IOUtil.forEachFile(f, c -> collect(errDir, c, found));
+        } else if (rel.getNameCount() > 1) {
+            found.put(rel.toString(), f);
+        }
+    }
+
+    private boolean retry(String rel, File errFile, State st) {
+        File inFile = new File(storeDistribute.getInDir(), rel);
+        if (inFile.exists()) {
+            // the same name is in in/ again, it's processed first
+            return false;
+        }
+        inFile.getParentFile().mkdirs();
+        if (!errFile.renameTo(inFile)) {
+            return false;
+        }
+        removeEmptyParents(errFile.getParentFile());
+        storeDistribute.processPath(inFile);
+        if (inFile.exists()) {
+            // it may be staged, its outcome is known when it is stored
+            storeDistribute.flush();
+        }
+        File again = findError(rel);
+        if (again == null && !inFile.exists()) {
+            states.remove(rel);
+            return true;
+        }
+        if (again != null && !isRetried(again)) {
+            // EXISTS, TOO_BIG: it stays there, it is not retried
+            states.remove(rel);
+            return false;
+        }
+        st.attempts++;
+        if (st.attempts >= maxAttempts) {
+            giveUp(rel, again);
+        } else {
+            st.next = System.currentTimeMillis() + Math.min(maxDelayMillis, initialDelayMillis << Math.min(st.attempts, 30));
+        }
+        return false;
+    }
+
+    private File findError(String rel) {
+        for (StoreFileManager.Errors err : StoreFileManager.Errors.values()) {
+            File f = new File(new File(errorDir, err.name()), rel);
+            if (f.exists()) {
+                return f;
+            }
+        }
+        return null;
+    }
+
+    private boolean isRetried(File errFile) {
+        String err = errorDir.toPath().relativize(errFile.toPath()).getName(0).toString();
+        return Arrays.asList(RETRY_ERRORS).contains(err);
+    }
+
+    // only an item of RETRY_ERRORS is moved to error/givenup/
+    private void giveUp(String rel, File errFile) {
+        states.remove(rel);
+        givenUp++;
+        if (errFile == null || !isRetried(errFile)) {
+            return;
+        }
+        Path errRel = errorDir.toPath().relativize(errFile.toPath());
+        File to = new File(new File(errorDir, DIR_GIVEN_UP), errRel.toString());
+        to.getParentFile().mkdirs();
+        if (errFile.renameTo(to)) {
+            removeEmptyParents(errFile.getParentFile());
+            System.out.println("retry>given up " + to);
+        }
+    }
+
+    // the source dirs error/<ERR>/<source> are kept
+    private void removeEmptyParents(File dir) {
+        while (dir != null && dir.getParentFile() != null && !dir.getParentFile().getParentFile().equals(errorDir)) {
+            String[] l = dir.list();
+            if (l == null || l.length > 0 || !dir.delete()) {
+                return;
+            }
+            dir = dir.getParentFile();
+        }
+    }
+
+    private void read() {
+        if (!stateFile.exists()) {
+            return;
+        }
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(stateFile), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] l = line.split(" ", 3);
+                if (l.length == 3) {
+                    states.put(l[2], new State(Integer.parseInt(l[0]), Long.parseLong(l[1])));
+                }
+            }
+        } catch (IOException | NumberFormatException ex) {
+            Logger.getLogger(RetryProcessor.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    private void write() {
+        File tmp = new File(errorDir, stateFile.getName() + ".tmp");
+        try {
+            try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8))) {
+                for (Map.Entry<String, State> e : states.entrySet()) {
+                    out.write(e.getValue().attempts + " " + e.getValue().next + " " + e.getKey() + "\n");
+                }
+            }
+            Files.move(tmp.toPath(), stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            Logger.getLogger(RetryProcessor.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    // the items waiting for a retry
+    public synchronized int getPending() {
+        return states.size();
+    }
+
+    public synchronized long getGivenUp() {
+        return givenUp;
+    }
+
+    public IngestStats getStats() {
+        return stats;
+    }
+
+    public synchronized void setBudget(int budget, int maxAttempts) {
+        this.budget = Math.max(1, budget);
+        this.maxAttempts = Math.max(1, maxAttempts);
+    }
+
+    public synchronized void setDelays(long initialDelayMillis, long maxDelayMillis) {
+        this.initialDelayMillis = initialDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    // takes effect at the next start
+    public synchronized void setPeriodMillis(long periodMillis) {
+        this.periodMillis = periodMillis;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "retry " + stats + ", given up " + givenUp + ", waiting " + states.size() + ", budget " + budget + ", max attempts " + maxAttempts;
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2017 Veronica Anokhina.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.org.sevn.tfstore;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.noggit.JSONUtil;
+import org.noggit.ObjectBuilder;
+
+// mtime and entries of the in/ directories that had nothing to process at the last completed scan
+// adding or removing an entry changes the directory mtime, so such directory needs no listing
+// while its mtime is the same: only its subdirectories are to be checked
+public class ScanCheckpoint {
+
+    // mtime granularity of the file systems (FAT has 2 seconds)
+    public static final long MTIME_GRANULARITY = 2000L;
+
+    public static class Entry {
+        private final long mtime;
+        private final int count;
+        private final List<String> subDirs;
+
+        public Entry(long mtime, int count, List<String> subDirs) {
+            this.mtime = mtime;
+            this.count = count;
+            this.subDirs = subDirs;
+        }
+
+        public long getMtime() {
+            return mtime;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public List<String> getSubDirs() {
+            return subDirs;
+        }
+    }
+
+    private final Path root;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Map<String, Boolean> visited = new ConcurrentHashMap<>();
+
+    public ScanCheckpoint(File root) {
+        this.root = root.getAbsoluteFile().toPath();
+    }
+
+    private String key(File dir) {
+        return root.relativize(dir.getAbsoluteFile().toPath()).toString().replace('\\', '/');
+    }
+
+    // the entry if the directory is not changed since it was recorded
+    public Entry getUnchanged(File dir) {
+        Entry e = entries.get(key(dir));
+        if (e != null && e.count == e.subDirs.size() && dir.lastModified() == e.mtime) {
+            return e;
+        }
+        return null;
+    }
+
+    public void setVisited(File dir) {
+        visited.put(key(dir), Boolean.TRUE);
+    }
+
+    public boolean isVisited(File dir) {
+        return visited.containsKey(key(dir));
+    }
+
+    public void put(File dir, Entry e) {
+        entries.put(key(dir), e);
+    }
+
+    // the directory was listed at scanStart, all its remaining entries are visited subdirectories
+    public void put(File dir, long mtime, long scanStart, Collection<String> subDirs) {
+        if (mtime > 0 && mtime < scanStart - MTIME_GRANULARITY && dir.lastModified() == mtime) {
+            put(dir, new Entry(mtime, subDirs.size(), new ArrayList<>(subDirs)));
+        }
+    }
+
+    public static ScanCheckpoint read(File root, File file) {
+        ScanCheckpoint ret = new ScanCheckpoint(root);
+        if (file.exists()) {
+            try {
+                String fstr = new String(Files.readAllBytes(file.toPath()), "UTF-8");
+                Map<String, Object> m = (Map)ObjectBuilder.fromJSON(fstr);
+                for (String k : m.keySet()) {
+                    Map e = (Map)m.get(k);
+                    List<String> subDirs = new ArrayList<>();
+                    for (Object o : (Collection)e.get("d")) {
+                        subDirs.add(o.toString());
+                    }
+                    ret.entries.put(k, new Entry(
+                            Long.parseLong(e.get("m").toString()),
+                            Integer.parseInt(e.get("c").toString()),
+                            subDirs));
+                }
+            } catch (Exception ex) {
+                // a full scan is done
+                Logger.getLogger(ScanCheckpoint.class.getName()).log(Level.SEVERE, null, ex);
+                ret.entries.clear();
+            }
+        }
+        return ret;
+    }
+
+    public void write(File file) throws Exception {
+        Map<String, Object> m = new LinkedHashMap<>();
+        for (String k : entries.keySet()) {
+            Entry e = entries.get(k);
+            Map<String, Object> em = new LinkedHashMap<>();
+            em.put("m", e.mtime);
+            em.put("c", e.count);
+            em.put("d", e.subDirs);
+            m.put(k, em);
+        }
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        Files.write(tmp.toPath(), JSONUtil.toJSON(m).getBytes("UTF-8"));
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2017 Veronica Anokhina.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.org.sevn.tfstore;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// the sizes of the open parts are taken from pN.info at the start, here they are measured again in the background,
+// one part at a time with a pause between the parts, see AbstractStoreFileManager.verifySizes
+public class SizeVerifier implements Runnable {
+
+    private final StoreDistribute storeDistribute;
+    private long periodMillis = 60 * 60 * 1000L;
+    private long initialDelayMillis = 5 * 60 * 1000L;
+    private volatile long pauseMillis = 1000L;
+    private long corrected;
+    private long rounds;
+
+    private ScheduledExecutorService executor;
+
+    public SizeVerifier(StoreDistribute storeDistribute) {
+        this.storeDistribute = storeDistribute;
+    }
+
+    public synchronized void start() {
+        if (executor == null) {
+            executor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "tfstore-sizes");
+                t.setDaemon(true);
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            });
+            executor.scheduleWithFixedDelay(this, initialDelayMillis, periodMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public synchronized void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    public synchronized boolean isRunning() {
+        return executor != null;
+    }
+
+    @Override
+    public void run() {
+        try {
+            verify();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (Exception ex) {
+            Logger.getLogger(SizeVerifier.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    // one round over all the stores
+    public void verify() throws InterruptedException {
+        long started = System.currentTimeMillis();
+        int n = storeDistribute.verifySizes(pauseMillis);
+        synchronized (this) {
+            corrected += n;
+            rounds++;
+        }
+        System.out.println("sizes>" + n + " parts corrected in " + (System.currentTimeMillis() - started) + " ms");
+    }
+
+    public synchronized void setPeriod(long periodMillis) {
+        this.periodMillis = periodMillis;
+        if (executor != null) {
+            stop();
+            start();
+        }
+    }
+
+    public long getPauseMillis() {
+        return pauseMillis;
+    }
+
+    public void setPauseMillis(long pauseMillis) {
+        this.pauseMillis = Math.max(0, pauseMillis);
+    }
+
+    public synchronized long getCorrected() {
+        return corrected;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "sizes: rounds " + rounds + ", corrected " + corrected + ", pause " + pauseMillis + " ms, period " + periodMillis + " ms";
+    }
+}
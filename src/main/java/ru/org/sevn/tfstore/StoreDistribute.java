@@ -17,21 +17,32 @@ package ru.org.sevn.tfstore;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
 import ru.org.sevn.common.solr.SolrIndexer;
+import ru.org.sevn.common.util.Durability;
+import ru.org.sevn.common.util.FileTransfer;
+import ru.org.sevn.common.util.IOGovernor;
+import ru.org.sevn.common.util.IOUtil;
 
 //keep
 //keeptill
@@ -69,6 +80,17 @@ public class StoreDistribute implements Runnable {
     private TempStoreFileManager tempStoreFileManager;
     private ChangeStoreFileManager changeStoreFileManager;
     
+    // 1 - walk the sources one after another on the caller thread
+    private int parallelism = 1;
+    private volatile IngestScheduler scheduler;
+    // store dir name -> weight, limit
+    private final Map<String, int[]> lanes = new ConcurrentHashMap<>();
+    private final Map<String, IngestStats> stats = new ConcurrentHashMap<>();
+    // directories with nothing to process at the last run, see listDir
+    private final File checkpointFile;
+    private ScanCheckpoint checkpoint;
+    private volatile ScanCheckpoint scan;
+    
     public StoreDistribute(File storeDir, SolrIndexer indexer, String[] fixStores) {
         this.storeDir = storeDir;
         inDir = mkDir(storeDir, DIR_INDIR);
@@ -80,6 +102,9 @@ public class StoreDistribute implements Runnable {
         fix = mkDir(inDir, DIR_FIX);
         change = mkDir(inDir, DIR_CHANGE);
         
+        checkpointFile = new File(storeDir, DIR_INDIR + ".checkpoint");
+        checkpoint = ScanCheckpoint.read(inDir, checkpointFile);
+        
         for (String s : fixStores) {
             s = "##" + s;
             fixStoreFileManagerMap.put(s, new FixStoreFileManager(mkDir(storageDir, s), indexer));
@@ -87,6 +112,9 @@ public class StoreDistribute implements Runnable {
         fixStoreFileManagerMap.put(DIR_FIX, new FixStoreFileManager(mkDir(storageDir, DIR_FIX), indexer));
         tempStoreFileManager = new TempStoreFileManager(mkDir(storageDir, DIR_TMP), indexer);
         changeStoreFileManager = new ChangeStoreFileManager(mkDir(storageDir, DIR_CHANGE), indexer);
+        for (AbstractStoreFileManager m : getStoreFileManagers()) {
+            m.setStagedResults(this::stagedDone);
+        }
     }
     
     public void restoreIndexing() {
@@ -112,7 +140,10 @@ public class StoreDistribute implements Runnable {
         return ret;
     }
     
-    private final SimpleDateFormat yyyymmdd = new SimpleDateFormat("yyyyMMdd");
+    // SimpleDateFormat is not thread safe, resolveItem runs in the watcher thread
+    private static Date parseDay(String name) throws ParseException {
+        return new SimpleDateFormat("yyyyMMdd").parse(name);
+    }
     private final Pattern keeptillP = Pattern.compile("\\d{8}");
     private final Pattern keepP = Pattern.compile("[ymdw]\\d{1,4}");
     private final Pattern weekP = Pattern.compile("w\\d{1,3}");
@@ -144,11 +175,11 @@ public class StoreDistribute implements Runnable {
     private void processFile(File basedir, PersistType pt, File file, HashSet<String> tags, KeepInfo keepInfo) {
         System.out.println("processFile>"+file.getAbsolutePath());
         if (file.isDirectory() && file.getName().startsWith("#")) {
-            for (File f : file.listFiles()) {
+            listDir(file, f -> {
                 HashSet<String> t = new HashSet<>(tags);
                 t.add(file.getName());
                 processFile(basedir, pt, f, t, keepInfo);
-            }
+            });
         } else {
             FileInfo fi = new FileInfo().setFile(file);
             fi.getTags().addAll(tags);
@@ -156,27 +187,73 @@ public class StoreDistribute implements Runnable {
             if (keepInfo != null) {
                 Date dayOff = keepInfo.dateOff;
                 if (dayOff == null) {
-                    dayOff = getDateOff(file, keepInfo);
+                    dayOff = getDateOff(fi, keepInfo);
                 }
                 fi.setDateOff(dayOff);
             }
             
-            StoreFileManager.Errors err = getStoreFileManager(pt, fi).addFile(fi);
-            if (err != null) {
-                File file2dir = mkDir(this.errorDir, err.name());
-                Path file2dirPath = Paths.get(file2dir.getAbsolutePath());
-                Path filePath = Paths.get(file.getAbsolutePath());
-                Path fileBasePath = Paths.get(basedir.getAbsolutePath());
-                
-                Path filePathRel = fileBasePath.relativize(filePath);
-                
-                File file2 = file2dirPath.resolve(filePathRel).toFile();
-                file2.getParentFile().mkdirs();
-                file.renameTo(file2);
+            StoreFileManager mgr = getStoreFileManager(pt, fi);
+            IngestScheduler sch = scheduler;
+            if (sch != null) {
+                try {
+                    sch.submit(((AbstractStoreFileManager)mgr).getDir().getName(), fi.getFileSize(), () -> addFile(basedir, mgr, fi));
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            } else {
+                addFile(basedir, mgr, fi);
             }
         }
     }
     
+    private void addFile(File basedir, StoreFileManager mgr, FileInfo fi) {
+        File file = fi.getPath().toFile();
+        StoreFileManager.Errors err = null;
+        try {
+            err = mgr.addFile(fi);
+        } catch (Exception ex) {
+            Logger.getLogger(StoreDistribute.class.getName()).log(Level.SEVERE, null, ex);
+            err = StoreFileManager.Errors.FATAL;
+        }
+        if (err == StoreFileManager.Errors.STAGED) {
+            // counted when it is stored, see stagedDone
+            return;
+        }
+        if (err != null) {
+            moveToError(file, err);
+        }
+        IngestStats st = stats.get(basedir.getName());
+        if (st != null) {
+            st.done(err != null);
+        }
+    }
+    
+    // a staged item is stored or failed, in/<source>/... is its place
+    private void stagedDone(Path source, StoreFileManager.Errors err) {
+        if (err != null) {
+            moveToError(source.toFile(), err);
+        }
+        Path rel = inDir.getAbsoluteFile().toPath().relativize(source.toAbsolutePath());
+        IngestStats st = stats.get(rel.getName(0).toString());
+        if (st != null) {
+            st.done(err != null);
+        }
+    }
+    
+    // error/<ERR>/<source>/..., the same place as in in/, see RetryProcessor
+    private void moveToError(File file, StoreFileManager.Errors err) {
+        File file2dir = mkDir(this.errorDir, err.name());
+        Path file2dirPath = Paths.get(file2dir.getAbsolutePath());
+        Path filePath = Paths.get(file.getAbsolutePath());
+        Path fileBasePath = Paths.get(inDir.getAbsolutePath());
+
+        Path filePathRel = fileBasePath.relativize(filePath);
+
+        File file2 = file2dirPath.resolve(filePathRel).toFile();
+        file2.getParentFile().mkdirs();
+        file.renameTo(file2);
+    }
+    
     private void processKeep(File f, KeepInfo keepInfo) {
         processFile(keepInfo.basedir, PersistType.TEMP, f, new HashSet<String>(), keepInfo);
     }
@@ -188,39 +265,199 @@ public class StoreDistribute implements Runnable {
     }
     
     @Override
-    public void run() {
-        processFix();
-        processChange();
-        processKeep();
-        processKeepTill();
+    public synchronized void run() {
+        stats.clear();
+        for (File f : new File[] { fix, change, keepDir, keepTill }) {
+            stats.put(f.getName(), new IngestStats(f.getName()));
+        }
+        ScanCheckpoint cur = new ScanCheckpoint(inDir);
+        scan = cur;
+        try {
+            if (parallelism > 1) {
+                runParallel();
+            } else {
+                processFix();
+                processChange();
+                processKeep();
+                processKeepTill();
+            }
+        } finally {
+            scan = null;
+            flush();
+        }
+        checkpoint = cur;
+        try {
+            cur.write(checkpointFile);
+        } catch (Exception ex) {
+            Logger.getLogger(StoreDistribute.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        System.out.println("checkpoint>" + cur.size() + " unchanged directories");
+        for (IngestStats st : stats.values()) {
+            System.out.println("processed>" + st);
+        }
+    }
+    
+    // the sources are walked concurrently, every file found is queued to the lane of its store
+    private void runParallel() {
+        ForkJoinPool p = new ForkJoinPool(parallelism);
+        IngestScheduler sch = new IngestScheduler(parallelism);
+        for (String k : lanes.keySet()) {
+            sch.setLane(k, lanes.get(k)[0], lanes.get(k)[1]);
+        }
+        scheduler = sch;
+        try {
+            p.execute(this::processFix);
+            p.execute(this::processChange);
+            p.execute(this::processKeep);
+            p.execute(this::processKeepTill);
+            p.awaitQuiescence(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            sch.awaitIdle();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            scheduler = null;
+            p.shutdown();
+            sch.shutdown();
+        }
+        for (IngestScheduler.Lane lane : sch.getLanes()) {
+            System.out.println("lane>" + lane);
+        }
+    }
+    
+    // fix stores (##media, ..., fix), tmp, change
+    public void setLane(String store, int weight, int limit) {
+        lanes.put(store, new int[] { weight, limit });
+    }
+    
+    public File getInDir() {
+        return inDir;
+    }
+    
+    public File getErrorDir() {
+        return errorDir;
+    }
+    
+    public boolean isSource(String name) {
+        return name.equals(DIR_FIX) || name.equals(DIR_CHANGE) || name.equals(DIR_KEEP) || name.equals(DIR_KEEP_TILL);
     }
+    
+    // the source of an error/<ERR>/<first>/... entry parked relative to its source dir:
+    // a keep period, a keeptill date, else fix (a change item can't be told from a fix one)
+    public String getLegacySource(String first) {
+        if (keepP.matcher(first).matches()) {
+            return DIR_KEEP;
+        }
+        if (keeptillP.matcher(first).matches()) {
+            return DIR_KEEP_TILL;
+        }
+        return DIR_FIX;
+    }
+    
+    // the directories walked into instead of being ingested: the sources, #tags, keep periods, keeptill dates
+    // rel - relative to in/
+    public boolean isContainer(Path rel) {
+        int n = rel.getNameCount();
+        String src = rel.getName(0).toString();
+        String name = rel.getFileName().toString();
+        if (n == 1) {
+            return isSource(src);
+        }
+        if (name.startsWith("#")) {
+            return true;
+        }
+        switch (src) {
+            case DIR_KEEP:
+                for (int i = 1; i < n; i++) {
+                    if (!keepP.matcher(rel.getName(i).toString()).matches()) {
+                        return false;
+                    }
+                }
+                return true;
+            case DIR_KEEP_TILL:
+                return n == 2 && keeptillP.matcher(name).matches();
+        }
+        return false;
+    }
+    
+    public Map<String, IngestStats> getStats() {
+        return stats;
+    }
+    
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    public void setParallelism(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    private void listDir(File dir, Consumer<File> consumer) {
+        ScanCheckpoint cur = scan;
+        if (cur == null) {
+            IOUtil.forEachFile(dir, consumer);
+            return;
+        }
+        cur.setVisited(dir);
+        ScanCheckpoint.Entry e = checkpoint.getUnchanged(dir);
+        if (e != null) {
+            cur.put(dir, e);
+            for (String name : e.getSubDirs()) {
+                consumer.accept(new File(dir, name));
+            }
+            return;
+        }
+        long scanStart = System.currentTimeMillis();
+        long mtime = dir.lastModified();
+        ArrayList<String> subDirs = new ArrayList<>();
+        AtomicBoolean clean = new AtomicBoolean(true);
+        boolean listed = IOUtil.forEachFile(dir, f -> {
+            consumer.accept(f);
+            if (f.exists()) {
+                // left after processing: it's ok for the walked directories only
+                if (cur.isVisited(f)) {
+                    subDirs.add(f.getName());
+                } else {
+                    clean.set(false);
+                }
+            }
+        });
+        if (listed && clean.get()) {
+            cur.put(dir, mtime, scanStart, subDirs);
+        }
+    }
+    
+    public synchronized void resetCheckpoint() {
+        checkpoint = new ScanCheckpoint(inDir);
+        checkpointFile.delete();
+    }
+    
     private void processFix() {
         System.out.println("processFile>"+fix.getAbsolutePath());
-        for (File f : fix.listFiles()) {
+        listDir(fix, f -> {
             processFile(this.fix, PersistType.FIX, f, new HashSet<String>(), null);
-        }
+        });
     }
     private void processChange() {
-        for (File f : change.listFiles()) {
+        listDir(change, f -> {
             processFile(this.change, PersistType.CHANGE, f, new HashSet<String>(), null);
-        }
+        });
     }
     private void processKeepTill() {
-        for (File dir : keepTill.listFiles()) {
+        listDir(keepTill, dir -> {
             if (dir.isDirectory() && keeptillP.matcher(dir.getName()).matches()) {
                 try {
-                    Date dateOff = yyyymmdd.parse(dir.getName());
-                    for (File f : dir.listFiles()) {
+                    Date dateOff = parseDay(dir.getName());
+                    listDir(dir, f -> {
                         processKeep(this.keepTill, f, dateOff);
-                    }
+                    });
                 } catch (ParseException ex) {
                     Logger.getLogger(StoreDistribute.class.getName()).log(Level.SEVERE, null, ex);
                 }
             }
-        }
+        });
     }
     private void processKeep() {
-        for (File f : keepDir.listFiles()) {
+        listDir(keepDir, f -> {
             if (f.isDirectory() && keepP.matcher(f.getName()).matches()) {
                 KeepInfo keepInfo =new KeepInfo(keepDir);
                 if (dayP.matcher(f.getName()).matches()) {
@@ -233,15 +470,13 @@ public class StoreDistribute implements Runnable {
                     processKeepYear(keepInfo, f);
                 }
             }
-        }
+        });
     }
-    private Date getDateOff(File f, KeepInfo keepInfo) {
-        long crDate = f.lastModified();
-        try {
-            BasicFileAttributes attr = Files.readAttributes(Paths.get(f.getAbsolutePath()), BasicFileAttributes.class);
-            crDate = Math.min(attr.creationTime().toMillis(), crDate);
-        } catch (IOException ex) {
-            Logger.getLogger(StoreDistribute.class.getName()).log(Level.SEVERE, null, ex);
+    private Date getDateOff(FileInfo fi, KeepInfo keepInfo) {
+        long crDate = System.currentTimeMillis();
+        BasicFileAttributes attr = fi.getMeta();
+        if (attr != null) {
+            crDate = Math.min(attr.creationTime().toMillis(), attr.lastModifiedTime().toMillis());
         }
         Calendar dateOff = Calendar.getInstance();
         dateOff.setTimeInMillis(crDate);
@@ -253,50 +488,302 @@ public class StoreDistribute implements Runnable {
     }
     private void processKeepDay(KeepInfo keepInfo, File dir) {
         int i = Integer.parseInt(dir.getName().substring(1));
-        keepInfo.d += i;
-        for (File f : dir.listFiles()) {
-            processKeep(f, keepInfo);
-        }
+        KeepInfo ki = keepInfo.copy();
+        ki.d += i;
+        listDir(dir, f -> {
+            processKeep(f, ki);
+        });
     }
     private void processKeepWeek(KeepInfo keepInfo, File dir) {
         int i = Integer.parseInt(dir.getName().substring(1));
-        keepInfo.w += i;
-        for (File f : dir.listFiles()) {
+        KeepInfo ki = keepInfo.copy();
+        ki.w += i;
+        listDir(dir, f -> {
             if (dayP.matcher(f.getName()).matches()) {
-                processKeepDay(keepInfo, f);
+                processKeepDay(ki, f);
             } else {
-                processKeep(f, keepInfo);
+                processKeep(f, ki);
             }
-        }
+        });
     }
     private void processKeepMonth(KeepInfo keepInfo, File dir) {
         int i = Integer.parseInt(dir.getName().substring(1));
-        keepInfo.m += i;
-        for (File f : dir.listFiles()) {
+        KeepInfo ki = keepInfo.copy();
+        ki.m += i;
+        listDir(dir, f -> {
             if (dayP.matcher(f.getName()).matches()) {
-                processKeepDay(keepInfo, f);
+                processKeepDay(ki, f);
             } else if (weekP.matcher(f.getName()).matches()) {
-                processKeepWeek(keepInfo, f);
+                processKeepWeek(ki, f);
             } else {
-                processKeep(f, keepInfo);
+                processKeep(f, ki);
             }
-        }
+        });
     }
     private void processKeepYear(KeepInfo keepInfo, File dir) {
         int i = Integer.parseInt(dir.getName().substring(1));
-        keepInfo.y += i;
-        for (File f : dir.listFiles()) {
+        KeepInfo ki = keepInfo.copy();
+        ki.y += i;
+        listDir(dir, f -> {
             if (dayP.matcher(f.getName()).matches()) {
-                processKeepDay(keepInfo, f);
+                processKeepDay(ki, f);
             } else if (weekP.matcher(f.getName()).matches()) {
-                processKeepWeek(keepInfo, f);
+                processKeepWeek(ki, f);
             } else if (monthP.matcher(f.getName()).matches()) {
-                processKeepMonth(keepInfo, f);
+                processKeepMonth(ki, f);
             } else {
-                processKeep(f, keepInfo);
+                processKeep(f, ki);
             }
+        });
+    }
+    // in/fix/#a/#b/item/... -> in/fix/#a/#b/item
+    // the ingest item a changed path belongs to, null if it is not under a source
+    public File resolveItem(File changed) {
+        InPath ip = parseInPath(changed);
+        return (ip == null) ? null : ip.file;
+    }
+    
+    // processes only the item the path belongs to, see resolveItem
+    public synchronized void processPath(File changed) {
+        InPath ip = parseInPath(changed);
+        if (ip == null || !ip.file.exists()) {
+            return;
         }
+        if (ip.file.equals(fix)) {
+            processFix();
+        } else if (ip.file.equals(change)) {
+            processChange();
+        } else if (ip.file.equals(keepDir)) {
+            processKeep();
+        } else if (ip.file.equals(keepTill)) {
+            processKeepTill();
+        } else if (ip.keepLevel != null) {
+            KeepInfo ki = ip.keepInfo;
+            File dir = ip.file;
+            if (dayP.matcher(dir.getName()).matches()) {
+                processKeepDay(ki, dir);
+            } else if (weekP.matcher(dir.getName()).matches()) {
+                processKeepWeek(ki, dir);
+            } else if (monthP.matcher(dir.getName()).matches()) {
+                processKeepMonth(ki, dir);
+            } else if (yearP.matcher(dir.getName()).matches()) {
+                processKeepYear(ki, dir);
+            } else { // keeptill date
+                listDir(dir, f -> {
+                    processKeep(ip.basedir, f, ki.dateOff);
+                });
+            }
+        } else {
+            processFile(ip.basedir, ip.pt, ip.file, ip.tags, ip.keepInfo);
+        }
+        flush();
     }
+    
+    private Collection<AbstractStoreFileManager> getStoreFileManagers() {
+        ArrayList<AbstractStoreFileManager> ret = new ArrayList<>(fixStoreFileManagerMap.values());
+        ret.add(tempStoreFileManager);
+        ret.add(changeStoreFileManager);
+        return ret;
+    }
+    
+    // the batched files are stored and indexed
+    public void flush() {
+        for (AbstractStoreFileManager m : getStoreFileManagers()) {
+            m.flush();
+        }
+    }
+    
+    public void setDurability(Durability durability) {
+        for (AbstractStoreFileManager m : getStoreFileManagers()) {
+            m.setDurability(durability);
+        }
+    }
+    
+    public void setIOGovernor(IOGovernor ioGovernor) {
+        for (AbstractStoreFileManager m : getStoreFileManagers()) {
+            m.setIOGovernor(ioGovernor);
+        }
+    }
+    
+    public void setFileTransfer(FileTransfer fileTransfer) {
+        for (AbstractStoreFileManager m : getStoreFileManagers()) {
+            m.setFileTransfer(fileTransfer);
+        }
+    }
+    
+    public void setDedup(boolean dedup) {
+        for (AbstractStoreFileManager m : getStoreFileManagers()) {
+            m.setDedup(dedup);
+        }
+    }
+    
+    public void setPackThreshold(long packThreshold) {
+        for (AbstractStoreFileManager m : getStoreFileManagers()) {
+            m.setPackThreshold(packThreshold);
+        }
+    }
+    
+    public int verifySizes(long pauseMillis) throws InterruptedException {
+        int ret = 0;
+        for (AbstractStoreFileManager m : getStoreFileManagers()) {
+            ret += m.verifySizes(pauseMillis);
+        }
+        return ret;
+    }
+    
+    public void setMediaProfile(MediaProfile mp) {
+        for (AbstractStoreFileManager m : getStoreFileManagers()) {
+            m.setMediaProfile(mp);
+        }
+    }
+    
+    public void setStageLimit(long bytes) {
+        for (AbstractStoreFileManager m : getStoreFileManagers()) {
+            m.setStageLimit(bytes);
+        }
+    }
+    
+    public void setAllocPolicy(PartAllocator.Policy policy) {
+        for (AbstractStoreFileManager m : getStoreFileManagers()) {
+            m.getAllocator().setPolicy(policy);
+        }
+    }
+    
+    // per store: the policy, the open parts and their fill
+    public String getPartFill() {
+        StringBuilder sb = new StringBuilder();
+        for (AbstractStoreFileManager m : getStoreFileManagers()) {
+            PartAllocator a = m.getAllocator();
+            sb.append(m.getStoreIdName()).append(": ").append(a).append(" ").append(a.getFillRatios()).append("\n");
+        }
+        return sb.toString();
+    }
+    
+    public void setBatch(int size, long millis) {
+        for (AbstractStoreFileManager m : getStoreFileManagers()) {
+            m.setBatch(size, millis);
+        }
+    }
+    
+    private static class InPath {
+        private File basedir;
+        private PersistType pt;
+        private File file;
+        private HashSet<String> tags = new HashSet<>();
+        private KeepInfo keepInfo;
+        // the keep (or keeptill date) directory the item is, keepInfo is without it
+        private Pattern keepLevel;
+    }
+    
+    private InPath parseInPath(File changed) {
+        Path rel;
+        try {
+            rel = inDir.getAbsoluteFile().toPath().relativize(changed.getAbsoluteFile().toPath());
+        } catch (IllegalArgumentException ex) {
+            return null;
+        }
+        if (rel.getNameCount() == 0 || rel.startsWith("..")) {
+            return null;
+        }
+        InPath ret = new InPath();
+        String src = rel.getName(0).toString();
+        int i = 1;
+        switch (src) {
+            case DIR_FIX:
+                ret.basedir = fix;
+                ret.pt = PersistType.FIX;
+                break;
+            case DIR_CHANGE:
+                ret.basedir = change;
+                ret.pt = PersistType.CHANGE;
+                break;
+            case DIR_KEEP:
+                ret.basedir = keepDir;
+                ret.pt = PersistType.TEMP;
+                ret.keepInfo = new KeepInfo(keepDir);
+                // y -> m -> w -> d
+                Pattern[] levels = new Pattern[] { yearP, monthP, weekP, dayP };
+                int level = 0;
+                for (; i < rel.getNameCount(); i++) {
+                    String name = rel.getName(i).toString();
+                    int found = -1;
+                    for (int l = level; l < levels.length && found < 0; l++) {
+                        if (levels[l].matcher(name).matches()) {
+                            found = l;
+                        }
+                    }
+                    if (found < 0 || !new File(ret.basedir, rel.subpath(1, i + 1).toString()).isDirectory()) {
+                        break;
+                    }
+                    if (i == rel.getNameCount() - 1) {
+                        ret.keepLevel = levels[found];
+                        ret.file = changed.getAbsoluteFile();
+                        return ret;
+                    }
+                    ret.keepInfo = ret.keepInfo.copy();
+                    int v = Integer.parseInt(name.substring(1));
+                    switch (found) {
+                        case 0: ret.keepInfo.y += v; break;
+                        case 1: ret.keepInfo.m += v; break;
+                        case 2: ret.keepInfo.w += v; break;
+                        default: ret.keepInfo.d += v; break;
+                    }
+                    level = found + 1;
+                }
+                if (i == 1) {
+                    // keep items are inside the [ymwd] directories only
+                    return (rel.getNameCount() == 1) ? sourceOnly(ret, keepDir) : null;
+                }
+                break;
+            case DIR_KEEP_TILL:
+                ret.basedir = keepTill;
+                ret.pt = PersistType.TEMP;
+                if (rel.getNameCount() == 1) {
+                    return sourceOnly(ret, keepTill);
+                }
+                String name = rel.getName(1).toString();
+                if (!keeptillP.matcher(name).matches()) {
+                    return null;
+                }
+                ret.keepInfo = new KeepInfo(keepTill);
+                try {
+                    ret.keepInfo.dateOff = parseDay(name);
+                } catch (ParseException ex) {
+                    return null;
+                }
+                i = 2;
+                if (rel.getNameCount() == 2) {
+                    ret.keepLevel = keeptillP;
+                    ret.file = changed.getAbsoluteFile();
+                    return ret;
+                }
+                break;
+            default:
+                return null;
+        }
+        if (i >= rel.getNameCount()) {
+            return sourceOnly(ret, ret.basedir);
+        }
+        File f = new File(inDir.getAbsoluteFile(), rel.subpath(0, i).toString());
+        for (; i < rel.getNameCount() - 1; i++) {
+            String name = rel.getName(i).toString();
+            f = new File(f, name);
+            if (!name.startsWith("#")) {
+                ret.file = f;
+                return ret;
+            }
+            ret.tags.add(name);
+        }
+        ret.file = new File(f, rel.getName(i).toString());
+        return ret;
+    }
+    
+    private InPath sourceOnly(InPath ip, File src) {
+        ip.file = src;
+        ip.keepInfo = null;
+        return ip;
+    }
+    
     public static class KeepInfo {
         private File basedir;
         private int w;
@@ -307,6 +794,62 @@ public class StoreDistribute implements Runnable {
         public KeepInfo(File basedir) {
             this.basedir = basedir;
         }
+        public KeepInfo copy() {
+            KeepInfo ret = new KeepInfo(basedir);
+            ret.w = w;
+            ret.y = y;
+            ret.m = m;
+            ret.d = d;
+            ret.dateOff = dateOff;
+            return ret;
+        }
+    }
+    
+    AbstractStoreFileManager getStoreFileManager(String div) {
+        for (AbstractStoreFileManager m : getStoreFileManagers()) {
+            if (m.getDir().getName().equals(div)) {
+                return m;
+            }
+        }
+        return null;
+    }
+    
+    public ChangeStoreFileManager getChangeStoreFileManager() {
+        return changeStoreFileManager;
+    }
+    
+    public boolean setCompress(String div, boolean compress) {
+        AbstractStoreFileManager mgr = getStoreFileManager(div);
+        if (mgr != null) {
+            mgr.setCompress(compress);
+            return true;
+        }
+        return false;
+    }
+    
+    public PartManifest writeManifest(String div, String part) throws IOException {
+        AbstractStoreFileManager mgr = getStoreFileManager(div);
+        if (mgr != null) {
+            return mgr.writeManifest(new File(mgr.getDir(), part));
+        }
+        return null;
+    }
+    
+    public List<String> verify(String div, String part, boolean content) throws IOException {
+        AbstractStoreFileManager mgr = getStoreFileManager(div);
+        if (mgr != null) {
+            return mgr.verify(new File(mgr.getDir(), part), content);
+        }
+        return null;
+    }
+    
+    // the tree is registered in place as the parts of the store div, see BulkImport
+    public BulkImport newImport(String div, File source, Collection<String> tags, int threads) {
+        AbstractStoreFileManager mgr = getStoreFileManager(div);
+        if (mgr != null) {
+            return new BulkImport(mgr, source, tags, threads);
+        }
+        return null;
     }
     
     public synchronized boolean backUp(String div, String part) throws Exception {
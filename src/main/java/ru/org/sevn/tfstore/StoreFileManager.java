@@ -22,14 +22,20 @@ public interface StoreFileManager {
     //120M
     public static long MAX_SIZE1 = 120*1024*1024L;
     
+    // STAGED is not an error: the file waits in the staging and its outcome is reported when it is stored
     enum Errors {
-        TOO_BIG, EXISTS, SOLR, FATAL
+        TOO_BIG, EXISTS, SOLR, FATAL, STAGED
     }
     
     Errors addFileIn(FileInfo file);
     
+    // a file bigger than a part may be stored in segments
+    public default boolean canSplit(FileInfo fi) {
+        return false;
+    }
+    
     public default Errors addFile(FileInfo fi) {
-        if (fi.getFileSize() >= MAX_SIZE1) {
+        if (fi.getFileSize() >= MAX_SIZE1 && !canSplit(fi)) {
             return Errors.TOO_BIG;
         }
         return addFileIn(fi);
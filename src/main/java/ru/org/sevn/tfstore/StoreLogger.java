@@ -29,12 +29,14 @@ import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import ru.org.sevn.common.util.Durability;
 
 public class StoreLogger {
     private final File logDir;
     private File outFile;
     private Writer out;
     private SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd");
+    private volatile Durability durability = new Durability();
     
     public StoreLogger(File f) {
         this.logDir = f;
@@ -59,6 +61,11 @@ public class StoreLogger {
     }
     
     public synchronized void log(String wpath, String part, String fullTitle, String uuid, Collection<String> tags) {
+        log(wpath, part, fullTitle, uuid, tags, true);
+    }
+    
+    // flush - false when a batch is logged, see flush()
+    public synchronized void log(String wpath, String part, String fullTitle, String uuid, Collection<String> tags, boolean flush) {
         JSONObject obj = new JSONObject();
         obj.put("w", wpath);
         obj.put("p", part);
@@ -69,13 +76,32 @@ public class StoreLogger {
         try {
             Writer out = getWriter();
             out.write(obj.toString(2));
-            out.flush();
+            if (flush) {
+                out.flush();
+                durability.file(outFile.toPath());
+            }
         } catch (IOException ex) {
             Logger.getLogger(StoreLogger.class.getName()).log(Level.SEVERE, null, ex);
             throw new RuntimeException("Can't log operation");
         }
     }
     
+    public synchronized void flush() {
+        if (out != null) {
+            try {
+                out.flush();
+                durability.file(outFile.toPath());
+            } catch (IOException ex) {
+                Logger.getLogger(StoreLogger.class.getName()).log(Level.SEVERE, null, ex);
+                throw new RuntimeException("Can't log operation");
+            }
+        }
+    }
+    
+    public void setDurability(Durability durability) {
+        this.durability = durability;
+    }
+    
     public synchronized void close() {
         if (out != null) {
             try {
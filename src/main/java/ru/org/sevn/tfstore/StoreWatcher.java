@@ -0,0 +1,197 @@
+/*
+ * Copyright 2017 Veronica Anokhina.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.org.sevn.tfstore;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// continuous mode: the changed items of in/ are processed as soon as they stop changing
+public class StoreWatcher implements Runnable {
+
+    private final StoreDistribute storeDistribute;
+    private final Path inDir;
+    // an item is processed when it is not changed during the period (twice, to check its size too)
+    private final long quietMillis;
+    // the full scan to catch the lost events
+    private final long reconcileMillis;
+
+    private WatchService watchService;
+    private final Map<WatchKey, Path> keys = new HashMap<>();
+    private final Map<Path, Pending> pending = new HashMap<>();
+    private long nextReconcile;
+    private volatile Thread thread;
+
+    private static class Pending {
+        private long lastEvent;
+        private long size = -1;
+    }
+
+    public StoreWatcher(StoreDistribute storeDistribute, File inDir, long quietMillis, long reconcileMillis) {
+        this.storeDistribute = storeDistribute;
+        this.inDir = inDir.getAbsoluteFile().toPath();
+        this.quietMillis = quietMillis;
+        this.reconcileMillis = reconcileMillis;
+    }
+
+    public synchronized void start() throws IOException {
+        if (thread == null) {
+            watchService = FileSystems.getDefault().newWatchService();
+            registerAll(inDir);
+            nextReconcile = System.currentTimeMillis() + reconcileMillis;
+            thread = new Thread(this, "tfstore-watcher");
+            thread.setDaemon(true);
+            thread.start();
+            System.out.println("watch>" + inDir);
+        }
+    }
+
+    public synchronized void stop() {
+        Thread t = thread;
+        thread = null;
+        if (t != null) {
+            t.interrupt();
+            try {
+                watchService.close();
+            } catch (IOException ex) {
+                Logger.getLogger(StoreWatcher.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+
+    public boolean isRunning() {
+        return thread != null;
+    }
+
+    private void registerAll(Path start) throws IOException {
+        Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                WatchKey key = dir.register(watchService,
+                        StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY);
+                keys.put(key, dir);
+                return FileVisitResult.CONTINUE;
+            }
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    @Override
+    public void run() {
+        while (thread == Thread.currentThread()) {
+            try {
+                WatchKey key = watchService.poll(Math.max(10, quietMillis / 2), TimeUnit.MILLISECONDS);
+                while (key != null) {
+                    processEvents(key);
+                    key = watchService.poll();
+                }
+                processPending();
+                if (System.currentTimeMillis() >= nextReconcile) {
+                    reconcile();
+                }
+            } catch (InterruptedException | java.nio.file.ClosedWatchServiceException ex) {
+                break;
+            } catch (Exception ex) {
+                Logger.getLogger(StoreWatcher.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+
+    private void processEvents(WatchKey key) throws IOException {
+        Path dir = keys.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                nextReconcile = 0;
+                continue;
+            }
+            if (dir == null) {
+                continue;
+            }
+            Path child = dir.resolve((Path)event.context());
+            if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(child)) {
+                registerAll(child);
+            }
+            File item = storeDistribute.resolveItem(child.toFile());
+            if (item != null) {
+                Path itemPath = item.toPath();
+                Pending p = pending.get(itemPath);
+                if (p == null) {
+                    p = new Pending();
+                    pending.put(itemPath, p);
+                }
+                p.lastEvent = System.currentTimeMillis();
+            }
+        }
+        if (!key.reset()) {
+            keys.remove(key);
+        }
+    }
+
+    private void processPending() {
+        long now = System.currentTimeMillis();
+        ArrayList<Path> ready = new ArrayList<>();
+        for (Iterator<Map.Entry<Path, Pending>> it = pending.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<Path, Pending> e = it.next();
+            Pending p = e.getValue();
+            if (now - p.lastEvent >= quietMillis) {
+                if (!Files.exists(e.getKey())) {
+                    it.remove();
+                    continue;
+                }
+                // still being written
+                long size = FileInfo.calculatePathSize(e.getKey());
+                if (size != p.size) {
+                    p.size = size;
+                    p.lastEvent = now;
+                } else {
+                    it.remove();
+                    ready.add(e.getKey());
+                }
+            }
+        }
+        for (Path p : ready) {
+            System.out.println("watch changed>" + p);
+            storeDistribute.processPath(p.toFile());
+        }
+    }
+
+    private void reconcile() throws IOException {
+        System.out.println("watch reconcile>" + inDir);
+        storeDistribute.run();
+        registerAll(inDir);
+        nextReconcile = System.currentTimeMillis() + reconcileMillis;
+    }
+}
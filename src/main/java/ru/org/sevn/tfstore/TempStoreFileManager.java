@@ -32,7 +32,10 @@ public class TempStoreFileManager extends AbstractStoreFileManager {
     @Override
     protected Path makeRelativePath(FileInfo file) {
         Path fileRelPath = super.makeRelativePath(file);
-        Path ret = Paths.get(sdf.format(file.getDateOff()));
+        Path ret;
+        synchronized (sdf) {
+            ret = Paths.get(sdf.format(file.getDateOff()));
+        }
         return ret.resolve(fileRelPath);
     }
     
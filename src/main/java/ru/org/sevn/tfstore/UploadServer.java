@@ -0,0 +1,190 @@
+/*
+ * Copyright 2017 Veronica Anokhina.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.org.sevn.tfstore;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.json.JSONObject;
+
+// local uploads, bound to the loopback only:
+// PUT or POST /upload?store=##media&name=a.jpg&tag=%23t1&tag=%23t2[&till=yyyyMMdd]
+// the body is the content, till is needed for the tmp store
+// 201 - stored, 409 - exists, 413 - too big, 503 - Solr, 500 - other errors
+public class UploadServer implements HttpHandler {
+
+    public static final String PATH = "/upload";
+
+    private final StoreDistribute storeDistribute;
+    private final int port;
+    private HttpServer server;
+    private ExecutorService executor;
+
+    public UploadServer(StoreDistribute storeDistribute, int port) {
+        this.storeDistribute = storeDistribute;
+        this.port = port;
+    }
+
+    public synchronized void start() throws IOException {
+        if (server == null) {
+            server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+            server.createContext(PATH, this);
+            executor = Executors.newFixedThreadPool(4, r -> {
+                Thread t = new Thread(r, "tfstore-upload");
+                t.setDaemon(true);
+                return t;
+            });
+            server.setExecutor(executor);
+            server.start();
+            System.out.println("upload>" + server.getAddress());
+        }
+    }
+
+    public synchronized void stop() {
+        if (server != null) {
+            server.stop(1);
+            executor.shutdown();
+            server = null;
+        }
+    }
+
+    public synchronized boolean isRunning() {
+        return server != null;
+    }
+
+    @Override
+    public void handle(HttpExchange ex) throws IOException {
+        try (InputStream in = ex.getRequestBody()) {
+            if (!"PUT".equals(ex.getRequestMethod()) && !"POST".equals(ex.getRequestMethod())) {
+                reply(ex, 405, error("PUT or POST"));
+                return;
+            }
+            Map<String, List<String>> params = parseQuery(ex.getRequestURI().getRawQuery());
+            String store = first(params, "store");
+            String name = first(params, "name");
+            AbstractStoreFileManager mgr = (store == null) ? null : storeDistribute.getStoreFileManager(store);
+            if (mgr == null) {
+                reply(ex, 400, error("no store " + store));
+                return;
+            }
+            if (name == null || name.isEmpty() || name.contains("/") || name.contains("\\") || name.equals(".") || name.equals("..")) {
+                reply(ex, 400, error("wrong name " + name));
+                return;
+            }
+            String length = ex.getRequestHeaders().getFirst("Content-Length");
+            if (length != null && Long.parseLong(length) >= StoreFileManager.MAX_SIZE) {
+                reply(ex, 413, error(StoreFileManager.Errors.TOO_BIG.name()));
+                return;
+            }
+            FileInfo fi = new FileInfo();
+            if (params.containsKey("tag")) {
+                fi.getTags().addAll(params.get("tag"));
+            }
+            String till = first(params, "till");
+            if (till != null) {
+                try {
+                    fi.setDateOff(new SimpleDateFormat("yyyyMMdd").parse(till));
+                } catch (ParseException e) {
+                    reply(ex, 400, error("wrong till " + till));
+                    return;
+                }
+            } else if (mgr instanceof TempStoreFileManager) {
+                reply(ex, 400, error("till is needed"));
+                return;
+            }
+            StoreFileManager.Errors err = mgr.addStream(name, fi, in);
+            if (err == null) {
+                JSONObject ret = new JSONObject();
+                ret.put("store", store);
+                ret.put("uuid", fi.getUuid().toString());
+                ret.put("hash", fi.getContentHash());
+                ret.put("path", AbstractStoreFileManager.getRelative(mgr.getDir(), fi.getPath().toFile()));
+                reply(ex, 201, ret);
+            } else {
+                reply(ex, status(err), error(err.name()));
+            }
+        } catch (Exception e) {
+            Logger.getLogger(UploadServer.class.getName()).log(Level.SEVERE, null, e);
+            reply(ex, 500, error(e.toString()));
+        } finally {
+            ex.close();
+        }
+    }
+
+    private static int status(StoreFileManager.Errors err) {
+        switch (err) {
+            case EXISTS:
+                return 409;
+            case TOO_BIG:
+                return 413;
+            case SOLR:
+                return 503;
+            default:
+                return 500;
+        }
+    }
+
+    private static JSONObject error(String msg) {
+        JSONObject ret = new JSONObject();
+        ret.put("error", msg);
+        return ret;
+    }
+
+    private static void reply(HttpExchange ex, int code, JSONObject body) throws IOException {
+        byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+        ex.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        ex.sendResponseHeaders(code, bytes.length);
+        try (OutputStream out = ex.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static String first(Map<String, List<String>> params, String name) {
+        List<String> l = params.get(name);
+        return (l == null || l.isEmpty()) ? null : l.get(0);
+    }
+
+    private static Map<String, List<String>> parseQuery(String query) throws UnsupportedEncodingException {
+        HashMap<String, List<String>> ret = new HashMap<>();
+        if (query != null) {
+            for (String kv : query.split("&")) {
+                int i = kv.indexOf('=');
+                String k = URLDecoder.decode((i < 0) ? kv : kv.substring(0, i), "UTF-8");
+                String v = (i < 0) ? "" : URLDecoder.decode(kv.substring(i + 1), "UTF-8");
+                ret.computeIfAbsent(k, key -> new ArrayList<>()).add(v);
+            }
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2017 Veronica Anokhina.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.org.sevn.common.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+// the surefire heap is small (see pom.xml): the listing of the wide directory as a whole does not fit in it
+public class IOUtilTest {
+
+    private static final int WIDE = 100000;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static String name(int i) {
+        char[] pad = new char[180];
+        Arrays.fill(pad, 'x');
+        return i + "-" + new String(pad);
+    }
+
+    private static long count(File dir) {
+        AtomicLong n = new AtomicLong();
+        assertTrue(IOUtil.forEachFile(dir, f -> n.incrementAndGet()));
+        return n.get();
+    }
+
+    // in/ is processed like this: every entry is moved out while the directory is read
+    @Test
+    public void ingestWideDirectory() throws Exception {
+        File in = tmp.newFolder("in");
+        File out = tmp.newFolder("out");
+        for (int i = 0; i < WIDE; i++) {
+            new File(in, name(i)).createNewFile();
+        }
+        AtomicLong seen = new AtomicLong();
+        boolean listed = IOUtil.forEachFile(in, f -> {
+            seen.incrementAndGet();
+            try {
+                Files.move(f.toPath(), new File(out, f.getName()).toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
+            }
+        });
+        assertTrue(listed);
+        assertEquals(WIDE, seen.get());
+        assertEquals(0, count(in));
+        assertEquals(WIDE, count(out));
+    }
+
+    @Test
+    public void moveDirOverwriteMerges() throws Exception {
+        File src = tmp.newFolder("src");
+        File dest = tmp.newFolder("dest");
+        int n = 1000;
+        for (int i = 0; i < n; i++) {
+            Files.write(new File(src, name(i)).toPath(), "new".getBytes("UTF-8"));
+        }
+        new File(src, "sub").mkdirs();
+        new File(new File(src, "sub"), "a").createNewFile();
+        for (int i = 0; i < n; i += 2) {
+            Files.write(new File(dest, name(i)).toPath(), "old".getBytes("UTF-8"));
+        }
+        new File(dest, "sub").mkdirs();
+        new File(new File(dest, "sub"), "b").createNewFile();
+
+        assertTrue(IOUtil.moveDirOverwrite(src, dest, true));
+        assertTrue(!src.exists());
+        assertEquals(n + 1, count(dest));
+        assertEquals(2, count(new File(dest, "sub")));
+        assertEquals("new", new String(Files.readAllBytes(new File(dest, name(0)).toPath()), "UTF-8"));
+    }
+}
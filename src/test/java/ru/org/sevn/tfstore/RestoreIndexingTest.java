@@ -0,0 +1,48 @@
+/*
+ * Copyright 2017 Veronica Anokhina.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.org.sevn.tfstore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+// restoreIndexing can be run again by JMX, the allocator and the parts map must keep one PartInfo per part
+public class RestoreIndexingTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void restoreTwiceKeepsThePart() throws Exception {
+        // no file is waiting for the index, the indexer is not used
+        FixStoreFileManager m = new FixStoreFileManager(tmp.newFolder("out", "fix"), null);
+        PartInfo pi = m.reserve(100);
+
+        m.restoreIndexing();
+        m.restoreIndexing();
+
+        assertSame(pi, m.getParts().get(pi.getNum()));
+        PartInfo next = m.reserve(50);
+        assertSame(pi, next);
+        assertEquals(150, m.getParts().get(pi.getNum()).getSize());
+        m.release(next, 50);
+        assertEquals(100, m.getParts().get(pi.getNum()).getSize());
+    }
+}